@@ -0,0 +1,55 @@
+package lk.ijse.dep9.benchmark;
+
+import lk.ijse.dep9.db.ConnectionPool;
+import org.openjdk.jmh.annotations.*;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ConnectionPool.getConnection() with more threads than connections, against a driver that costs nothing.
+ * Run with -t to change the number of threads.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 2, jvmArgsAppend = {"-Xms512m", "-Xmx512m"})
+@Threads(32)
+public class ConnectionPoolBenchmark {
+
+    @Param({"10"})
+    public int poolSize;
+
+    private ConnectionPool pool;
+
+    @Setup
+    public void setUp() {
+        StubDriver.register();
+        pool = new ConnectionPool(StubDriver.URL, "", "", poolSize, 30_000, 500, 0, 64);
+    }
+
+    @TearDown
+    public void tearDown() {
+        pool.close();
+    }
+
+    @Benchmark
+    public void borrow() throws SQLException {
+        try (Connection connection = pool.getConnection()) {
+            connection.getAutoCommit();
+        }
+    }
+
+    /* The statement comes out of the connection's statement cache after the first round */
+    @Benchmark
+    public void borrowAndPrepare() throws SQLException {
+        try (Connection connection = pool.getConnection();
+             PreparedStatement stm = connection.prepareStatement("SELECT * FROM book WHERE isbn = ?")) {
+            stm.setString(1, "978-3-16-148410-0");
+        }
+    }
+}
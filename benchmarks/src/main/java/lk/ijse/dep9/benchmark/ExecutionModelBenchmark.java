@@ -0,0 +1,124 @@
+package lk.ijse.dep9.benchmark;
+
+import lk.ijse.dep9.db.GatedDataSource;
+import org.openjdk.jmh.annotations.*;
+
+import javax.sql.DataSource;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Throughput of the thread-per-request model against a virtual thread per request when far more requests
+ * are in flight than there are connections. Every request waits for the simulated network I/O of the client,
+ * a share of them also borrow a connection and wait for the simulated database. Run with a Java 21 runtime,
+ * the virtual mode fails its setup on older ones.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = "-Djdk.virtualThreadScheduler.parallelism=16")
+public class ExecutionModelBenchmark {
+
+    /* Tomcat's default maxThreads */
+    private static final int CONTAINER_THREADS = 200;
+    private static final int REQUESTS = 1000;
+
+    @Param({"platform", "bounded", "virtual"})
+    public String mode;
+
+    @Param({"10"})
+    public int poolSize;
+
+    @Param({"0.2"})
+    public double dbFraction;
+
+    @Param({"2"})
+    public long ioMillis;
+
+    @Param({"5"})
+    public long queryMillis;
+
+    private ExecutorService executor;
+    private DataSource dataSource;
+
+    @Setup
+    public void setUp() throws Exception {
+        switch (mode) {
+            case "platform":
+                executor = Executors.newFixedThreadPool(CONTAINER_THREADS, daemon());
+                break;
+            case "bounded":
+                executor = Executors.newFixedThreadPool(poolSize, daemon());
+                break;
+            case "virtual":
+                executor = (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+                break;
+            default:
+                throw new IllegalArgumentException(mode);
+        }
+        dataSource = new GatedDataSource(stubDataSource(), poolSize, 0);
+    }
+
+    @TearDown
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(REQUESTS)
+    public int requests() throws Exception {
+        CountDownLatch latch = new CountDownLatch(REQUESTS);
+        AtomicInteger failures = new AtomicInteger();
+        int dbRequests = (int) (REQUESTS * dbFraction);
+        for (int i = 0; i < REQUESTS; i++) {
+            /* Spreads the database requests evenly over the burst */
+            boolean db = i * dbRequests / REQUESTS != (i + 1) * dbRequests / REQUESTS;
+            executor.execute(() -> {
+                try {
+                    handle(db);
+                } catch (Exception e) {
+                    failures.incrementAndGet();
+                } finally {
+                    latch.countDown();
+                }
+            });
+        }
+        latch.await();
+        if (failures.get() > 0) throw new IllegalStateException(failures.get() + " requests failed");
+        return REQUESTS;
+    }
+
+    private void handle(boolean db) throws Exception {
+        pause(ioMillis);
+        if (!db) return;
+        try (Connection connection = dataSource.getConnection()) {
+            pause(queryMillis);
+        }
+    }
+
+    private static void pause(long millis) {
+        LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(millis));
+    }
+
+    private static ThreadFactory daemon() {
+        return runnable -> {
+            Thread thread = new Thread(runnable);
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /* Connections that cost nothing, the time is spent in pause() */
+    private static DataSource stubDataSource() {
+        Connection connection = (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+                new Class<?>[]{Connection.class}, (proxy, method, args) -> null);
+        return (DataSource) Proxy.newProxyInstance(DataSource.class.getClassLoader(),
+                new Class<?>[]{DataSource.class}, (proxy, method, args) ->
+                        method.getName().equals("getConnection") ? connection : null);
+    }
+}
@@ -0,0 +1,106 @@
+package lk.ijse.dep9.benchmark;
+
+import jakarta.json.Json;
+import jakarta.json.JsonArray;
+import jakarta.json.JsonNumber;
+import jakarta.json.JsonObject;
+import jakarta.json.JsonReader;
+import jakarta.json.JsonString;
+import jakarta.json.JsonValue;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Compares two JMH result files written with -rf json, benchmark by benchmark and parameter set by parameter set.
+ * A change counts as a regression when it is worse than the threshold (5% by default) and larger than the
+ * error margins of both runs together; the exit status is 1 if there is any.
+ * <pre>
+ * java -cp target/benchmarks.jar lk.ijse.dep9.benchmark.ResultsDiff baseline.json target/jmh-result.json [threshold%]
+ * </pre>
+ */
+public class ResultsDiff {
+
+    private static class Result {
+        private final String mode;
+        private final String unit;
+        private final double score;
+        private final double error;
+
+        Result(String mode, String unit, double score, double error) {
+            this.mode = mode;
+            this.unit = unit;
+            this.score = score;
+            this.error = error;
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: ResultsDiff <baseline.json> <current.json> [threshold%]");
+            System.exit(2);
+        }
+        Map<String, Result> baseline = read(Path.of(args[0]));
+        Map<String, Result> current = read(Path.of(args[1]));
+        double threshold = args.length > 2 ? Double.parseDouble(args[2]) : 5;
+
+        int regressions = 0;
+        System.out.printf("%-90s %14s %14s %9s%n", "Benchmark", "Baseline", "Current", "Change");
+        for (Map.Entry<String, Result> entry : current.entrySet()) {
+            Result before = baseline.get(entry.getKey());
+            Result after = entry.getValue();
+            if (before == null || !before.unit.equals(after.unit)) {
+                System.out.printf("%-90s %14s %14.3f %9s%n", entry.getKey(), "-", after.score, "new");
+                continue;
+            }
+
+            double change = (after.score - before.score) / before.score * 100;
+            /* Throughput should go up, everything else (average time, sample time...) should go down */
+            double worse = after.mode.equals("thrpt") ? -change : change;
+            boolean significant = Math.abs(after.score - before.score) > before.error + after.error;
+            String verdict = worse > threshold && significant ? "  REGRESSION" :
+                    worse < -threshold && significant ? "  improved" : "";
+            if (!verdict.isEmpty() && worse > 0) regressions++;
+            System.out.printf("%-90s %14.3f %14.3f %+8.1f%%%s%n", entry.getKey(), before.score, after.score,
+                    change, verdict);
+        }
+        for (String name : baseline.keySet()) {
+            if (!current.containsKey(name)) System.out.printf("%-90s %14s %14s %9s%n", name, "", "-", "removed");
+        }
+
+        System.out.println(regressions == 0 ? "No regressions" : regressions + " regression(s)");
+        System.exit(regressions == 0 ? 0 : 1);
+    }
+
+    private static Map<String, Result> read(Path path) throws IOException {
+        Map<String, Result> results = new LinkedHashMap<>();
+        try (Reader reader = Files.newBufferedReader(path); JsonReader json = Json.createReader(reader)) {
+            JsonArray runs = json.readArray();
+            for (JsonValue value : runs) {
+                JsonObject run = value.asJsonObject();
+                StringBuilder name = new StringBuilder(run.getString("benchmark"));
+                JsonObject params = run.getJsonObject("params");
+                if (params != null) {
+                    Map<String, String> sorted = new TreeMap<>();
+                    params.forEach((key, param) -> sorted.put(key, ((JsonString) param).getString()));
+                    name.append(sorted);
+                }
+                JsonObject metric = run.getJsonObject("primaryMetric");
+                results.put(name.toString(), new Result(run.getString("mode"), metric.getString("scoreUnit"),
+                        metric.getJsonNumber("score").doubleValue(), error(metric)));
+            }
+        }
+        return results;
+    }
+
+    /* JMH writes "NaN" as a string when a run has too few iterations to estimate the error */
+    private static double error(JsonObject metric) {
+        JsonValue error = metric.get("scoreError");
+        return error instanceof JsonNumber ? ((JsonNumber) error).doubleValue() : 0;
+    }
+}
@@ -0,0 +1,58 @@
+package lk.ijse.dep9.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Matching the path info of a request the way doGet and doPatch do, with Pattern.compile() on every request,
+ * against patterns compiled once. The expressions are copied from BookServlet and MemberServlet.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 2, jvmArgsAppend = {"-Xms512m", "-Xmx512m"})
+public class RoutingBenchmark {
+
+    private static final String BOOK_ROUTE = "^/([0-9][0-9\\\\-]*[0-9])/?$";
+    private static final String MEMBER_ROUTE = "^/([A-Fa-f0-9]{8}(-[A-Fa-f0-9]{4}){3}-[A-Fa-f0-9]{12})/?$";
+    private static final String EXPORT_ROUTE = "/export/?";
+
+    private static final Pattern BOOK_PATTERN = Pattern.compile(BOOK_ROUTE);
+    private static final Pattern MEMBER_PATTERN = Pattern.compile(MEMBER_ROUTE);
+    private static final Pattern EXPORT_PATTERN = Pattern.compile(EXPORT_ROUTE);
+
+    public String bookPath = "/978-3-16-148410-0";
+    public String memberPath = "/4b1d5f4e-3c2a-4f6b-9a8e-7d6c5b4a3f2e/";
+
+    @Benchmark
+    public String bookCompileEachTime() {
+        Matcher matcher = Pattern.compile(BOOK_ROUTE).matcher(bookPath);
+        return matcher.matches() ? matcher.group(1) : null;
+    }
+
+    @Benchmark
+    public String bookPrecompiled() {
+        Matcher matcher = BOOK_PATTERN.matcher(bookPath);
+        return matcher.matches() ? matcher.group(1) : null;
+    }
+
+    /* MemberServlet tries the export route first */
+    @Benchmark
+    public String memberCompileEachTime() {
+        if (memberPath.matches(EXPORT_ROUTE)) return "export";
+        Matcher matcher = Pattern.compile(MEMBER_ROUTE).matcher(memberPath);
+        return matcher.matches() ? matcher.group(1) : null;
+    }
+
+    @Benchmark
+    public String memberPrecompiled() {
+        if (EXPORT_PATTERN.matcher(memberPath).matches()) return "export";
+        Matcher matcher = MEMBER_PATTERN.matcher(memberPath);
+        return matcher.matches() ? matcher.group(1) : null;
+    }
+}
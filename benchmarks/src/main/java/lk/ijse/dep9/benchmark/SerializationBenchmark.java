@@ -0,0 +1,72 @@
+package lk.ijse.dep9.benchmark;
+
+import jakarta.json.bind.Jsonb;
+import jakarta.json.bind.JsonbBuilder;
+import lk.ijse.dep9.api.util.JsonCodec;
+import lk.ijse.dep9.dto.BookDTO;
+import lk.ijse.dep9.dto.MemberDTO;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writing a page of books or members through Yasson, the way the servlets used to, against JsonCodec.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 2, jvmArgsAppend = {"-Xms512m", "-Xmx512m"})
+public class SerializationBenchmark {
+
+    @Param({"10", "100", "1000"})
+    public int size;
+
+    private final OutputStream out = OutputStream.nullOutputStream();
+    private Jsonb jsonb;
+    private List<BookDTO> books;
+    private List<MemberDTO> members;
+
+    @Setup
+    public void setUp() {
+        jsonb = JsonbBuilder.create();
+        books = new ArrayList<>(size);
+        members = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            books.add(new BookDTO("978-3-16-" + (148410 + i), "Book title number " + i, "Some Author", i % 7));
+            members.add(new MemberDTO(new UUID(i, i).toString(), "Member Name", i + ", Main Street, Colombo",
+                    "077-" + (1000000 + i)));
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        jsonb.close();
+    }
+
+    @Benchmark
+    public void booksYasson() {
+        jsonb.toJson(books, out);
+    }
+
+    @Benchmark
+    public void booksCodec() throws IOException {
+        JsonCodec.writeBooks(books, out);
+    }
+
+    @Benchmark
+    public void membersYasson() {
+        jsonb.toJson(members, out);
+    }
+
+    @Benchmark
+    public void membersCodec() throws IOException {
+        JsonCodec.writeMembers(members, out);
+    }
+}
@@ -0,0 +1,73 @@
+package lk.ijse.dep9.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * The regular expressions saveBook, updateMember and createNewIssueNote validate with, called through
+ * String.matches() (which compiles the expression every time) and through a precompiled Pattern.
+ * The expressions are copied from the servlets and have to be kept in step with them.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 2, jvmArgsAppend = {"-Xms512m", "-Xmx512m"})
+public class ValidationBenchmark {
+
+    private static final String MEMBER_ID = "([A-Fa-f0-9]{8}(-[A-Fa-f0-9]{4}){3}-[A-Fa-f0-9]{12})";
+    private static final String ISBN = "([0-9][0-9\\\\-]*[0-9])";
+    private static final String NAME = "[A-Za-z ]+";
+    private static final String CONTACT = "\\d{3}-\\d{7}";
+    private static final String ADDRESS = "^[A-Za-z0-9|,.:;#\\/\\\\ -]+$";
+
+    private static final Pattern MEMBER_ID_PATTERN = Pattern.compile(MEMBER_ID);
+    private static final Pattern ISBN_PATTERN = Pattern.compile(ISBN);
+    private static final Pattern NAME_PATTERN = Pattern.compile(NAME);
+    private static final Pattern CONTACT_PATTERN = Pattern.compile(CONTACT);
+    private static final Pattern ADDRESS_PATTERN = Pattern.compile(ADDRESS);
+
+    public String memberId = "4b1d5f4e-3c2a-4f6b-9a8e-7d6c5b4a3f2e";
+    public String[] isbns = {"978-3-16-148410-0", "978-0-13-468599-1", "978-1-49-195017-3"};
+    public String name = "Kasun Perera";
+    public String contact = "077-1234567";
+    public String address = "No. 12, Galle Road, Colombo 03";
+
+    @Benchmark
+    public boolean issueNoteMatches() {
+        boolean valid = memberId.matches(MEMBER_ID);
+        for (String isbn : isbns) valid &= isbn.matches(ISBN);
+        return valid;
+    }
+
+    @Benchmark
+    public boolean issueNotePattern() {
+        boolean valid = MEMBER_ID_PATTERN.matcher(memberId).matches();
+        for (String isbn : isbns) valid &= ISBN_PATTERN.matcher(isbn).matches();
+        return valid;
+    }
+
+    @Benchmark
+    public boolean memberMatches() {
+        return name.matches(NAME) && contact.matches(CONTACT) && address.matches(ADDRESS);
+    }
+
+    @Benchmark
+    public boolean memberPattern() {
+        return NAME_PATTERN.matcher(name).matches() && CONTACT_PATTERN.matcher(contact).matches() &&
+                ADDRESS_PATTERN.matcher(address).matches();
+    }
+
+    @Benchmark
+    public boolean bookMatches() {
+        return isbns[0].matches(ISBN) && name.matches(".+") && name.matches(NAME);
+    }
+
+    @Benchmark
+    public boolean bookPattern() {
+        return ISBN_PATTERN.matcher(isbns[0]).matches() && !name.isEmpty() && NAME_PATTERN.matcher(name).matches();
+    }
+}
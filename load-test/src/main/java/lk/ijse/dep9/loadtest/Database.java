@@ -0,0 +1,101 @@
+package lk.ijse.dep9.loadtest;
+
+import ch.vorburger.exec.ManagedProcessException;
+import ch.vorburger.mariadb4j.DB;
+import ch.vorburger.mariadb4j.DBConfigurationBuilder;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * The database the back-end runs against: an embedded MariaDB started on a free port and thrown away afterwards,
+ * or an existing MySQL server when a JDBC url is given, in which case the schema is expected to be there already.
+ */
+class Database implements AutoCloseable {
+
+    static final String NAME = "dep9_lms";
+
+    private final DB embedded;
+    private final String url;
+    private final String username;
+    private final String password;
+
+    private Database(DB embedded, String url, String username, String password) {
+        this.embedded = embedded;
+        this.url = url;
+        this.username = username;
+        this.password = password;
+    }
+
+    static Database embedded() throws ManagedProcessException, SQLException, IOException {
+        DBConfigurationBuilder config = DBConfigurationBuilder.newBuilder();
+        config.setPort(0);
+        /* mysqld refuses to run as root unless told to, which is what CI containers usually run as */
+        if ("root".equals(System.getProperty("user.name"))) config.addArg("--user=root");
+        DB db = DB.newEmbeddedDB(config.build());
+        db.start();
+        /* The application's own driver, config.getURL() would be a MariaDB Connector/J url */
+        String server = "jdbc:mysql://localhost:" + db.getConfiguration().getPort() + "/";
+        try {
+            /* Through JDBC rather than DB.createDB(), which needs the mysql client and its libraries */
+            try (Connection connection = DriverManager.getConnection(server, "root", "");
+                 Statement stm = connection.createStatement()) {
+                stm.execute("CREATE DATABASE " + NAME);
+            }
+            Database database = new Database(db, server + NAME, "root", "");
+            database.createSchema();
+            return database;
+        } catch (SQLException | IOException | RuntimeException e) {
+            db.stop();
+            throw e;
+        }
+    }
+
+    static Database external(String url, String username, String password) {
+        return new Database(null, url, username, password);
+    }
+
+    boolean isEmbedded() {
+        return embedded != null;
+    }
+
+    /* The settings the application is documented to run with, see ConnectionPoolFactory */
+    String getUrl() {
+        return url + (url.contains("?") ? "&" : "?") + "useServerPrepStmts=true&rewriteBatchedStatements=true";
+    }
+
+    String getUsername() {
+        return username;
+    }
+
+    String getPassword() {
+        return password;
+    }
+
+    Connection connect() throws SQLException {
+        return DriverManager.getConnection(getUrl(), username, password);
+    }
+
+    private void createSchema() throws SQLException, IOException {
+        String script;
+        try (InputStream in = Database.class.getResourceAsStream("/schema.sql")) {
+            if (in == null) throw new IOException("schema.sql is missing from the classpath");
+            script = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+        try (Connection connection = connect(); Statement stm = connection.createStatement()) {
+            for (String sql : script.replaceAll("(?m)^--.*$", "").split(";")) {
+                if (!sql.isBlank()) stm.execute(sql);
+            }
+        }
+    }
+
+    @Override
+    public void close() throws ManagedProcessException {
+        if (embedded != null) embedded.stop();
+    }
+}
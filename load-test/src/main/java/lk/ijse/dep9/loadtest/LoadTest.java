@@ -0,0 +1,166 @@
+package lk.ijse.dep9.loadtest;
+
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Boots the back-end in an embedded Tomcat against a seeded database, drives it with a mix of reads and writes,
+ * and reports throughput and p50/p99/p999 latency per endpoint. With -baseline the run is compared with an earlier
+ * result file and the exit status is 1 if any endpoint regressed. Baselines only mean something on the machine
+ * they were recorded on, so record one there with -save-baseline before comparing.
+ * <pre>
+ * -books 20000 -members 5000 -loans 40000 -seed 42   the data set, issue notes have one to three books each
+ * -clients 16 -warmup 10 -duration 30                 concurrent clients, and seconds discarded / measured
+ * -mix search=30,book=20,...                          endpoint weights, see {@link Workload.Endpoint}
+ * -pool-size 10 -param executionMode=virtual          connection pool size, and context parameters (repeatable)
+ * -db-url jdbc:mysql://host:3306/dep9_lms -db-user root -db-password secret
+ *                                                     an existing database instead of an embedded MariaDB,
+ *                                                     seeded only when it has no books
+ * -webapp ../src/main/webapp                          the directory holding WEB-INF/web.xml
+ * -out target/load-test-result.json -baseline baseline.json -threshold 20 -save-baseline baseline.json
+ * </pre>
+ */
+public class LoadTest {
+
+    private static final Map<String, String> DEFAULTS = new LinkedHashMap<>();
+
+    static {
+        DEFAULTS.put("books", "20000");
+        DEFAULTS.put("members", "5000");
+        DEFAULTS.put("loans", "40000");
+        DEFAULTS.put("seed", "42");
+        DEFAULTS.put("clients", "16");
+        DEFAULTS.put("warmup", "10");
+        DEFAULTS.put("duration", "30");
+        DEFAULTS.put("mix", "");
+        DEFAULTS.put("pool-size", "10");
+        DEFAULTS.put("db-url", "");
+        DEFAULTS.put("db-user", "root");
+        DEFAULTS.put("db-password", "");
+        DEFAULTS.put("webapp", "../src/main/webapp");
+        DEFAULTS.put("out", "target/load-test-result.json");
+        DEFAULTS.put("baseline", "");
+        DEFAULTS.put("threshold", "20");
+        DEFAULTS.put("save-baseline", "");
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new LinkedHashMap<>(DEFAULTS);
+        Map<String, String> parameters = new TreeMap<>();
+        for (int i = 0; i < args.length; i += 2) {
+            String name = args[i].startsWith("-") ? args[i].substring(1) : args[i];
+            if (i + 1 >= args.length || (!DEFAULTS.containsKey(name) && !name.equals("param"))) {
+                System.err.println("Unknown option or missing value: " + args[i]);
+                System.err.println("Options: " + DEFAULTS.keySet() + " and -param name=value");
+                System.exit(2);
+            }
+            if (name.equals("param")) {
+                String[] parameter = args[i + 1].split("=", 2);
+                parameters.put(parameter[0], parameter.length > 1 ? parameter[1] : "");
+            } else {
+                options.put(name, args[i + 1]);
+            }
+        }
+        Map<Workload.Endpoint, Integer> mix = mix(options.get("mix"));
+        int clients = Integer.parseInt(options.get("clients"));
+        long seed = Long.parseLong(options.get("seed"));
+
+        Results results;
+        try (Database database = options.get("db-url").isEmpty() ? Database.embedded() :
+                Database.external(options.get("db-url"), options.get("db-user"), options.get("db-password"))) {
+            seed(database, options);
+
+            try (Server server = Server.start(Path.of(options.get("webapp")), Path.of("target", "tomcat"), database,
+                    Integer.parseInt(options.get("pool-size")), parameters)) {
+                Workload workload = new Workload(server.getPort(), mix, database);
+                System.out.printf("Back-end listening on port %d, %d loans open, %d clients%n", server.getPort(),
+                        workload.getOpenLoans(), clients);
+
+                List<Thread> threads = workload.start(clients, seed);
+                Thread.sleep(Long.parseLong(options.get("warmup")) * 1000);
+                workload.reset();
+                long started = System.nanoTime();
+                Thread.sleep(Long.parseLong(options.get("duration")) * 1000);
+                Map<Workload.Endpoint, Workload.Stats> stats = workload.reset();
+                double seconds = (System.nanoTime() - started) / 1e9;
+                workload.stop(threads);
+
+                results = Results.of(settings(options, parameters, mix, database), seconds, stats);
+            }
+        }
+
+        results.print(System.out);
+        results.write(Path.of(options.get("out")));
+        System.out.println("Results written to " + options.get("out"));
+        if (!options.get("save-baseline").isEmpty()) {
+            results.write(Path.of(options.get("save-baseline")));
+            System.out.println("Baseline saved to " + options.get("save-baseline"));
+        }
+        if (!options.get("baseline").isEmpty()) {
+            Results baseline = Results.read(Path.of(options.get("baseline")));
+            int regressions = results.compare(baseline, Double.parseDouble(options.get("threshold")), System.out);
+            System.exit(regressions == 0 ? 0 : 1);
+        }
+        System.exit(0);
+    }
+
+    /* An external database keeps its data, it is only seeded the first time */
+    private static void seed(Database database, Map<String, String> options) throws Exception {
+        try (Connection connection = database.connect()) {
+            ResultSet rst = connection.createStatement().executeQuery("SELECT EXISTS (SELECT 1 FROM book)");
+            rst.next();
+            if (rst.getBoolean(1)) {
+                System.out.println("The database already has data, it is used as it is");
+                return;
+            }
+            new Seeder(Integer.parseInt(options.get("books")), Integer.parseInt(options.get("members")),
+                    Integer.parseInt(options.get("loans")), Long.parseLong(options.get("seed"))).seed(connection);
+        }
+    }
+
+    private static Map<Workload.Endpoint, Integer> mix(String spec) {
+        Map<Workload.Endpoint, Integer> mix = new EnumMap<>(Workload.Endpoint.class);
+        for (Workload.Endpoint endpoint : Workload.Endpoint.values()) mix.put(endpoint, endpoint.defaultWeight);
+        if (spec.isBlank()) return mix;
+
+        for (Workload.Endpoint endpoint : Workload.Endpoint.values()) mix.put(endpoint, 0);
+        for (String entry : spec.split(",")) {
+            String[] weight = entry.trim().split("=", 2);
+            Workload.Endpoint endpoint = null;
+            for (Workload.Endpoint candidate : Workload.Endpoint.values()) {
+                if (candidate.key.equals(weight[0])) endpoint = candidate;
+            }
+            if (endpoint == null || weight.length < 2 || !weight[1].matches("\\d+")) {
+                throw new IllegalArgumentException("Invalid mix entry: " + entry);
+            }
+            mix.put(endpoint, Integer.parseInt(weight[1]));
+        }
+        return mix;
+    }
+
+    /* Everything that makes two runs comparable, a baseline recorded with other settings is reported */
+    private static Map<String, String> settings(Map<String, String> options, Map<String, String> parameters,
+                                                Map<Workload.Endpoint, Integer> mix, Database database) {
+        Map<String, String> settings = new LinkedHashMap<>();
+        for (String name : List.of("books", "members", "loans", "seed", "clients", "warmup", "duration", "pool-size")) {
+            settings.put(name, options.get(name));
+        }
+        StringBuilder weights = new StringBuilder();
+        mix.forEach((endpoint, weight) -> {
+            if (weight == 0) return;
+            weights.append(weights.length() == 0 ? "" : ",").append(endpoint.key).append('=').append(weight);
+        });
+        settings.put("mix", weights.toString());
+        settings.put("params", parameters.toString());
+        settings.put("database", database.isEmbedded() ? "embedded MariaDB" : options.get("db-url"));
+        settings.put("java", System.getProperty("java.version"));
+        settings.put("cpus", String.valueOf(Runtime.getRuntime().availableProcessors()));
+        return settings;
+    }
+}
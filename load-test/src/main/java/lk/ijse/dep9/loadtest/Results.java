@@ -0,0 +1,192 @@
+package lk.ijse.dep9.loadtest;
+
+import jakarta.json.Json;
+import jakarta.json.JsonObject;
+import jakarta.json.JsonObjectBuilder;
+import jakarta.json.JsonReader;
+import jakarta.json.JsonString;
+import jakarta.json.JsonWriter;
+import jakarta.json.JsonWriterFactory;
+import jakarta.json.stream.JsonGenerator;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Throughput and latency percentiles per endpoint for one run, together with the settings it ran with, so that a
+ * baseline is only compared with runs of the same shape. Latencies are kept in milliseconds.
+ */
+class Results {
+
+    static final String TOTAL = "total";
+
+    /* Fewer samples than this and p99 is little more than the slowest few requests */
+    private static final long MIN_REQUESTS = 200;
+
+    static class Row {
+        final long requests;
+        final long rejected;
+        final long errors;
+        final double throughput;
+        final double p50;
+        final double p99;
+        final double p999;
+
+        Row(long requests, long rejected, long errors, double throughput, double p50, double p99, double p999) {
+            this.requests = requests;
+            this.rejected = rejected;
+            this.errors = errors;
+            this.throughput = throughput;
+            this.p50 = p50;
+            this.p99 = p99;
+            this.p999 = p999;
+        }
+
+        double errorRate() {
+            return requests == 0 ? 0 : (double) errors / requests;
+        }
+    }
+
+    private final Map<String, String> settings;
+    private final double seconds;
+    private final Map<String, Row> rows;
+
+    private Results(Map<String, String> settings, double seconds, Map<String, Row> rows) {
+        this.settings = settings;
+        this.seconds = seconds;
+        this.rows = rows;
+    }
+
+    static Results of(Map<String, String> settings, double seconds, Map<Workload.Endpoint, Workload.Stats> stats) {
+        Map<String, Row> rows = new LinkedHashMap<>();
+        long requests = 0, rejected = 0, errors = 0;
+        for (Map.Entry<Workload.Endpoint, Workload.Stats> entry : stats.entrySet()) {
+            Workload.Stats stat = entry.getValue();
+            long count = stat.latency.getCount();
+            if (count == 0) continue;
+            long[] quantiles = stat.latency.quantiles(0.5, 0.99, 0.999);
+            rows.put(entry.getKey().label, new Row(count, stat.rejected.sum(), stat.errors.sum(), count / seconds,
+                    quantiles[0] / 1e6, quantiles[1] / 1e6, quantiles[2] / 1e6));
+            requests += count;
+            rejected += stat.rejected.sum();
+            errors += stat.errors.sum();
+        }
+        rows.put(TOTAL, new Row(requests, rejected, errors, requests / seconds, Double.NaN, Double.NaN, Double.NaN));
+        return new Results(settings, seconds, rows);
+    }
+
+    void print(PrintStream out) {
+        out.printf("%-36s %9s %10s %9s %9s %9s %9s %7s%n",
+                "Endpoint", "Requests", "Req/s", "p50 ms", "p99 ms", "p999 ms", "Rejected", "Errors");
+        rows.forEach((endpoint, row) -> out.printf("%-36s %9d %10.1f %9s %9s %9s %9d %7d%n", endpoint, row.requests,
+                row.throughput, millis(row.p50), millis(row.p99), millis(row.p999), row.rejected, row.errors));
+    }
+
+    /**
+     * Prints this run against the baseline and returns the number of regressions: an endpoint whose throughput
+     * dropped or whose p99 grew by more than the threshold (a percentage), or whose error rate went up by more
+     * than a percentage point.
+     */
+    int compare(Results baseline, double threshold, PrintStream out) {
+        baseline.settings.forEach((name, value) -> {
+            if (!Objects.equals(value, settings.get(name))) {
+                out.printf("Warning: the baseline ran with %s=%s, this run with %s=%s%n", name, value, name,
+                        settings.get(name));
+            }
+        });
+
+        int regressions = 0;
+        out.printf("%-36s %10s %10s %8s %9s %9s %8s%n",
+                "Endpoint", "Base req/s", "Req/s", "Change", "Base p99", "p99", "Change");
+        for (Map.Entry<String, Row> entry : rows.entrySet()) {
+            Row before = baseline.rows.get(entry.getKey());
+            Row after = entry.getValue();
+            if (before == null) {
+                out.printf("%-36s %10s %10.1f %8s%n", entry.getKey(), "-", after.throughput, "new");
+                continue;
+            }
+
+            double throughputChange = change(before.throughput, after.throughput);
+            double p99Change = change(before.p99, after.p99);
+            boolean enough = before.requests >= MIN_REQUESTS && after.requests >= MIN_REQUESTS;
+            StringBuilder verdict = new StringBuilder();
+            if (enough && -throughputChange > threshold) verdict.append("  THROUGHPUT");
+            if (enough && p99Change > threshold) verdict.append("  LATENCY");
+            if (after.errorRate() > before.errorRate() + 0.01) verdict.append("  ERRORS");
+            if (verdict.length() > 0) regressions++;
+
+            out.printf("%-36s %10.1f %10.1f %+7.1f%% %9s %9s %8s%s%n", entry.getKey(), before.throughput,
+                    after.throughput, throughputChange, millis(before.p99), millis(after.p99),
+                    Double.isNaN(p99Change) ? "" : String.format("%+7.1f%%", p99Change), verdict);
+        }
+        for (String endpoint : baseline.rows.keySet()) {
+            if (!rows.containsKey(endpoint)) out.printf("%-36s %10s %10s %8s%n", endpoint, "", "-", "removed");
+        }
+
+        out.println(regressions == 0 ? "No regressions" : regressions + " regression(s)");
+        return regressions;
+    }
+
+    void write(Path path) throws IOException {
+        JsonObjectBuilder settingsJson = Json.createObjectBuilder();
+        settings.forEach(settingsJson::add);
+        JsonObjectBuilder endpointsJson = Json.createObjectBuilder();
+        rows.forEach((endpoint, row) -> {
+            JsonObjectBuilder rowJson = Json.createObjectBuilder()
+                    .add("requests", row.requests)
+                    .add("rejected", row.rejected)
+                    .add("errors", row.errors)
+                    .add("throughput", row.throughput);
+            if (!Double.isNaN(row.p50)) rowJson.add("p50", row.p50).add("p99", row.p99).add("p999", row.p999);
+            endpointsJson.add(endpoint, rowJson);
+        });
+
+        JsonWriterFactory factory = Json.createWriterFactory(Map.of(JsonGenerator.PRETTY_PRINTING, true));
+        if (path.getParent() != null) Files.createDirectories(path.getParent());
+        try (Writer writer = Files.newBufferedWriter(path); JsonWriter json = factory.createWriter(writer)) {
+            json.writeObject(Json.createObjectBuilder()
+                    .add("settings", settingsJson)
+                    .add("seconds", seconds)
+                    .add("endpoints", endpointsJson)
+                    .build());
+        }
+    }
+
+    static Results read(Path path) throws IOException {
+        try (Reader reader = Files.newBufferedReader(path); JsonReader json = Json.createReader(reader)) {
+            JsonObject results = json.readObject();
+            Map<String, String> settings = new LinkedHashMap<>();
+            results.getJsonObject("settings").forEach((name, value) ->
+                    settings.put(name, ((JsonString) value).getString()));
+
+            Map<String, Row> rows = new LinkedHashMap<>();
+            results.getJsonObject("endpoints").forEach((endpoint, value) -> {
+                JsonObject row = value.asJsonObject();
+                rows.put(endpoint, new Row(row.getJsonNumber("requests").longValue(),
+                        row.getJsonNumber("rejected").longValue(), row.getJsonNumber("errors").longValue(),
+                        row.getJsonNumber("throughput").doubleValue(), number(row, "p50"), number(row, "p99"),
+                        number(row, "p999")));
+            });
+            return new Results(settings, results.getJsonNumber("seconds").doubleValue(), rows);
+        }
+    }
+
+    private static double number(JsonObject row, String name) {
+        return row.containsKey(name) ? row.getJsonNumber(name).doubleValue() : Double.NaN;
+    }
+
+    private static double change(double before, double after) {
+        return (after - before) / before * 100;
+    }
+
+    private static String millis(double value) {
+        return Double.isNaN(value) ? "" : String.format("%.2f", value);
+    }
+}
@@ -0,0 +1,200 @@
+package lk.ijse.dep9.loadtest;
+
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.UUID;
+
+/**
+ * Fills an empty database with a catalog, a member base and three years of issue notes. The data depends only on
+ * the sizes and the seed, so two runs with the same settings load the same rows. Every note older than the last
+ * tenth has been returned, and the loans still open respect the rules the servlets enforce: at most three books
+ * per member, never the same book twice, and never more copies out than a book has.
+ */
+class Seeder {
+
+    static final String[] TITLE_WORDS = {"history", "garden", "river", "ocean", "silent", "night", "empire",
+            "shadow", "journey", "science", "modern", "ancient", "island", "winter", "summer", "secret", "light",
+            "stone", "kingdom", "city", "mountain", "forest", "music", "poetry", "letters", "machine", "memory",
+            "voyage", "crown", "desert"};
+    private static final String[] FIRST_NAMES = {"Kasun", "Nimal", "Amali", "Sunil", "Dilani", "Ruwan", "Tharindu",
+            "Chathura", "Ishara", "Nadeesha", "Pradeep", "Sanduni", "Lahiru", "Harsha", "Madhavi", "Janaka"};
+    private static final String[] LAST_NAMES = {"Perera", "Silva", "Fernando", "Jayasinghe", "Bandara",
+            "Wickramasinghe", "Gunawardena", "Rajapaksha", "Herath", "Dissanayake", "Karunaratne", "Samarawickrama"};
+    private static final String[] STREETS = {"Galle Road", "Kandy Road", "Main Street", "Temple Road", "Lake Drive",
+            "Station Road", "Hospital Road", "Park Avenue"};
+    private static final String[] CITIES = {"Colombo", "Kandy", "Galle", "Matara", "Negombo", "Kurunegala",
+            "Panadura", "Jaffna"};
+
+    private static final int BATCH_SIZE = 5000;
+    private static final int HISTORY_DAYS = 3 * 365;
+
+    private final int books;
+    private final int members;
+    private final int loans;
+    private final Random random;
+
+    private final int[] copies;
+    private final int[] booksOut;
+    private final int[][] memberLoans;
+    private final int[] memberLoanCount;
+
+    private long issuedBooks;
+
+    Seeder(int books, int members, int loans, long seed) {
+        if (books < 3 || members < 1 || loans < 0) throw new IllegalArgumentException("At least 3 books and 1 member");
+        this.books = books;
+        this.members = members;
+        this.loans = loans;
+        random = new Random(seed);
+        copies = new int[books];
+        booksOut = new int[books];
+        memberLoans = new int[members][3];
+        memberLoanCount = new int[members];
+    }
+
+    static String isbn(int book) {
+        return String.format("978-%09d", book);
+    }
+
+    static String memberId(int member) {
+        return UUID.nameUUIDFromBytes(("member-" + member).getBytes()).toString();
+    }
+
+    void seed(Connection connection) throws SQLException {
+        long started = System.nanoTime();
+        connection.setAutoCommit(false);
+        try {
+            seedBooks(connection);
+            seedMembers(connection);
+            seedLoans(connection);
+        } catch (SQLException | RuntimeException e) {
+            connection.rollback();
+            throw e;
+        } finally {
+            connection.setAutoCommit(true);
+        }
+        System.out.printf("Seeded %d books, %d members and %d issue notes (%d books issued) in %.1f s%n",
+                books, members, loans, issuedBooks, (System.nanoTime() - started) / 1e9);
+    }
+
+    private void seedBooks(Connection connection) throws SQLException {
+        try (PreparedStatement stm = connection.prepareStatement(
+                "INSERT INTO book (isbn, title, author, copies) VALUES (?, ?, ?, ?)")) {
+            for (int i = 0; i < books; i++) {
+                copies[i] = 1 + random.nextInt(5);
+                stm.setString(1, isbn(i));
+                stm.setString(2, capitalize(pick(TITLE_WORDS)) + " " + capitalize(pick(TITLE_WORDS)) + " of the " +
+                        capitalize(pick(TITLE_WORDS)));
+                stm.setString(3, pick(FIRST_NAMES) + " " + pick(LAST_NAMES));
+                stm.setInt(4, copies[i]);
+                stm.addBatch();
+                if ((i + 1) % BATCH_SIZE == 0) flush(connection, stm);
+            }
+            flush(connection, stm);
+        }
+    }
+
+    private void seedMembers(Connection connection) throws SQLException {
+        try (PreparedStatement stm = connection.prepareStatement(
+                "INSERT INTO member (id, name, address, contact) VALUES (?, ?, ?, ?)")) {
+            for (int i = 0; i < members; i++) {
+                stm.setString(1, memberId(i));
+                stm.setString(2, pick(FIRST_NAMES) + " " + pick(LAST_NAMES));
+                stm.setString(3, (1 + random.nextInt(400)) + ", " + pick(STREETS) + ", " + pick(CITIES));
+                stm.setString(4, String.format("%03d-%07d", 70 + i / 10_000_000, i % 10_000_000));
+                stm.addBatch();
+                if ((i + 1) % BATCH_SIZE == 0) flush(connection, stm);
+            }
+            flush(connection, stm);
+        }
+    }
+
+    private void seedLoans(Connection connection) throws SQLException {
+        LocalDate today = LocalDate.now();
+        LocalDate first = today.minusDays(HISTORY_DAYS);
+        try (PreparedStatement stmNote = connection.prepareStatement(
+                "INSERT INTO issue_note (id, date, member_id) VALUES (?, ?, ?)");
+             PreparedStatement stmItem = connection.prepareStatement(
+                     "INSERT INTO issue_item (issue_id, isbn) VALUES (?, ?)");
+             PreparedStatement stmReturn = connection.prepareStatement(
+                     "INSERT INTO `return` (date, issue_id, isbn) VALUES (?, ?, ?)")) {
+            for (int n = 0; n < loans; n++) {
+                int id = n + 1;
+                LocalDate date = first.plusDays((long) n * HISTORY_DAYS / Math.max(loans, 1));
+                int member = random.nextInt(members);
+                int[] picked = pickBooks(1 + random.nextInt(3));
+                boolean open = n >= loans * 0.9 && random.nextInt(10) < 4 && canBorrow(member, picked);
+
+                stmNote.setInt(1, id);
+                stmNote.setDate(2, Date.valueOf(date));
+                stmNote.setString(3, memberId(member));
+                stmNote.addBatch();
+                for (int book : picked) {
+                    stmItem.setInt(1, id);
+                    stmItem.setString(2, isbn(book));
+                    stmItem.addBatch();
+                    if (open) {
+                        booksOut[book]++;
+                        memberLoans[member][memberLoanCount[member]++] = book;
+                    } else {
+                        LocalDate returned = date.plusDays(1 + random.nextInt(21));
+                        stmReturn.setDate(1, Date.valueOf(returned.isAfter(today) ? today : returned));
+                        stmReturn.setInt(2, id);
+                        stmReturn.setString(3, isbn(book));
+                        stmReturn.addBatch();
+                    }
+                }
+                issuedBooks += picked.length;
+                if ((n + 1) % BATCH_SIZE == 0) flush(connection, stmNote, stmItem, stmReturn);
+            }
+            flush(connection, stmNote, stmItem, stmReturn);
+        }
+    }
+
+    private int[] pickBooks(int count) {
+        int[] picked = new int[count];
+        for (int i = 0; i < count; i++) {
+            int book;
+            do {
+                book = random.nextInt(books);
+            } while (contains(picked, i, book));
+            picked[i] = book;
+        }
+        return picked;
+    }
+
+    private boolean canBorrow(int member, int[] picked) {
+        if (memberLoanCount[member] + picked.length > 3) return false;
+        for (int book : picked) {
+            if (booksOut[book] >= copies[book] || contains(memberLoans[member], memberLoanCount[member], book)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean contains(int[] values, int length, int value) {
+        return Arrays.stream(values, 0, length).anyMatch(v -> v == value);
+    }
+
+    private String pick(String[] values) {
+        return values[random.nextInt(values.length)];
+    }
+
+    private static String capitalize(String word) {
+        return Character.toUpperCase(word.charAt(0)) + word.substring(1);
+    }
+
+    /* The statements are flushed in order, so that the foreign keys of each batch are already there */
+    private static void flush(Connection connection, PreparedStatement... statements) throws SQLException {
+        for (PreparedStatement stm : statements) {
+            stm.executeBatch();
+        }
+        connection.commit();
+    }
+}
@@ -0,0 +1,98 @@
+package lk.ijse.dep9.loadtest;
+
+import lk.ijse.dep9.api.BookServlet;
+import org.apache.catalina.Context;
+import org.apache.catalina.LifecycleException;
+import org.apache.catalina.LifecycleState;
+import org.apache.catalina.WebResourceRoot;
+import org.apache.catalina.startup.Tomcat;
+import org.apache.catalina.webresources.DirResourceSet;
+import org.apache.catalina.webresources.JarResourceSet;
+import org.apache.catalina.webresources.StandardRoot;
+import org.apache.tomcat.util.descriptor.web.ApplicationParameter;
+import org.apache.tomcat.util.descriptor.web.ContextResource;
+import org.apache.tomcat.util.scan.StandardJarScanner;
+
+import javax.sql.DataSource;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+
+/**
+ * The back-end deployed the way it is in production: web.xml from the webapp directory, the servlets and the
+ * listener found by annotation scanning, and the connection pool bound by ConnectionPoolFactory. Context
+ * parameters given here win over the ones in web.xml.
+ */
+class Server implements AutoCloseable {
+
+    private final Tomcat tomcat;
+
+    private Server(Tomcat tomcat) {
+        this.tomcat = tomcat;
+    }
+
+    static Server start(Path webappDir, Path baseDir, Database database, int poolSize, Map<String, String> parameters)
+            throws LifecycleException, IOException, URISyntaxException {
+        if (!Files.isRegularFile(webappDir.resolve("WEB-INF/web.xml"))) {
+            throw new IOException(webappDir.toAbsolutePath() + " is not the webapp directory of the back-end");
+        }
+        Files.createDirectories(baseDir);
+        Tomcat tomcat = new Tomcat();
+        tomcat.setBaseDir(baseDir.toString());
+        tomcat.setPort(0);
+        tomcat.getConnector();
+        tomcat.enableNaming();
+        tomcat.setAddDefaultWebXmlToWebapp(false);
+
+        Context ctx = tomcat.addWebapp("", webappDir.toAbsolutePath().toString());
+        ((StandardJarScanner) ctx.getJarScanner()).setScanClassPath(false);
+
+        /* The compiled back-end, a directory or the classes jar, stands in for WEB-INF/classes */
+        Path classes = Path.of(BookServlet.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+        WebResourceRoot resources = new StandardRoot(ctx);
+        resources.addPreResources(Files.isDirectory(classes) ?
+                new DirResourceSet(resources, "/WEB-INF/classes", classes.toString(), "/") :
+                new JarResourceSet(resources, "/WEB-INF/classes", classes.toString(), "/"));
+        ctx.setResources(resources);
+
+        ContextResource pool = new ContextResource();
+        pool.setName("jdbc/dep9-lms");
+        pool.setAuth("Container");
+        pool.setType(DataSource.class.getName());
+        pool.setCloseMethod("close");
+        pool.setProperty("factory", "lk.ijse.dep9.db.ConnectionPoolFactory");
+        pool.setProperty("url", database.getUrl());
+        pool.setProperty("username", database.getUsername());
+        pool.setProperty("password", database.getPassword());
+        pool.setProperty("poolSize", String.valueOf(poolSize));
+        ctx.getNamingResources().addResource(pool);
+
+        parameters.forEach((name, value) -> {
+            ApplicationParameter parameter = new ApplicationParameter();
+            parameter.setName(name);
+            parameter.setValue(value);
+            parameter.setOverride(false);
+            ctx.addApplicationParameter(parameter);
+        });
+
+        tomcat.start();
+        if (ctx.getState() != LifecycleState.STARTED) {
+            tomcat.stop();
+            tomcat.destroy();
+            throw new LifecycleException("The back-end failed to start, see the log above");
+        }
+        return new Server(tomcat);
+    }
+
+    int getPort() {
+        return tomcat.getConnector().getLocalPort();
+    }
+
+    @Override
+    public void close() throws LifecycleException {
+        tomcat.stop();
+        tomcat.destroy();
+    }
+}
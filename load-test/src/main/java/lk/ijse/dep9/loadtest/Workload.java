@@ -0,0 +1,254 @@
+package lk.ijse.dep9.loadtest;
+
+import jakarta.json.Json;
+import jakarta.json.JsonObject;
+import jakarta.json.JsonReader;
+import jakarta.json.JsonString;
+import lk.ijse.dep9.metrics.Histogram;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.SplittableRandom;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A fixed number of clients, each sending its next request as soon as the previous one has been answered, with
+ * the endpoint drawn at random from a weighted mix. Issue notes are placed for random members and books, so some
+ * of them are turned down by the business rules the way they would be at the counter; returns are taken from the
+ * loans that are open in the database, including the ones the run itself has issued.
+ */
+class Workload {
+
+    enum Endpoint {
+        SEARCH_BOOKS("search", "GET /books?q&size&page", 30),
+        BOOK("book", "GET /books/{isbn}", 20),
+        MEMBERS("members", "GET /members?size&page", 10),
+        MEMBER("member", "GET /members/{id}", 15),
+        LOAN_HISTORY("history", "GET /issue-notes/export?memberId", 3),
+        ISSUE("issue", "POST /issue-notes", 10),
+        RETURN("return", "POST /returns", 10),
+        NEW_MEMBER("new-member", "POST /members", 2);
+
+        final String key;
+        final String label;
+        final int defaultWeight;
+
+        Endpoint(String key, String label, int defaultWeight) {
+            this.key = key;
+            this.label = label;
+            this.defaultWeight = defaultWeight;
+        }
+    }
+
+    /** What one endpoint has seen since the counters were last reset, latencies in nanoseconds. */
+    static class Stats {
+        final Histogram latency = new Histogram();
+        final LongAdder ok = new LongAdder();
+        final LongAdder rejected = new LongAdder();
+        final LongAdder errors = new LongAdder();
+    }
+
+    private static class Loan {
+        private final String memberId;
+        private final int issueNoteId;
+        private final String isbn;
+
+        Loan(String memberId, int issueNoteId, String isbn) {
+            this.memberId = memberId;
+            this.issueNoteId = issueNoteId;
+            this.isbn = isbn;
+        }
+    }
+
+    private final String baseUrl;
+    private final HttpClient client;
+    private final Endpoint[] draw;
+    private final List<String> isbns = new ArrayList<>();
+    private final List<String> memberIds = new ArrayList<>();
+    private final Queue<Loan> openLoans = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger newMembers = new AtomicInteger();
+    private final int books;
+    private final int members;
+
+    private volatile Map<Endpoint, Stats> stats;
+    private volatile boolean running;
+
+    Workload(int port, Map<Endpoint, Integer> weights, Database database) throws SQLException {
+        baseUrl = "http://localhost:" + port;
+        client = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_1_1)
+                .connectTimeout(Duration.ofSeconds(10))
+                .build();
+
+        List<Endpoint> endpoints = new ArrayList<>();
+        weights.forEach((endpoint, weight) -> {
+            for (int i = 0; i < weight; i++) endpoints.add(endpoint);
+        });
+        if (endpoints.isEmpty()) throw new IllegalArgumentException("The mix has no endpoint with a weight");
+        draw = endpoints.toArray(new Endpoint[0]);
+
+        try (Connection connection = database.connect(); Statement stm = connection.createStatement()) {
+            ResultSet rst = stm.executeQuery("SELECT isbn FROM book");
+            while (rst.next()) isbns.add(rst.getString(1));
+            rst = stm.executeQuery("SELECT id FROM member");
+            while (rst.next()) memberIds.add(rst.getString(1));
+            rst = stm.executeQuery("SELECT `in`.member_id, ii.issue_id, ii.isbn FROM issue_item ii " +
+                    "INNER JOIN issue_note `in` ON ii.issue_id = `in`.id " +
+                    "LEFT OUTER JOIN `return` r ON r.issue_id = ii.issue_id AND r.isbn = ii.isbn " +
+                    "WHERE r.isbn IS NULL");
+            while (rst.next()) openLoans.add(new Loan(rst.getString(1), rst.getInt(2), rst.getString(3)));
+        }
+        if (isbns.size() < 2 || memberIds.isEmpty()) throw new IllegalStateException("The database has no data");
+        books = isbns.size();
+        members = memberIds.size();
+        reset();
+    }
+
+    int getOpenLoans() {
+        return openLoans.size();
+    }
+
+    /** Starts counting afresh and returns what has been counted so far. */
+    Map<Endpoint, Stats> reset() {
+        Map<Endpoint, Stats> fresh = new EnumMap<>(Endpoint.class);
+        for (Endpoint endpoint : Endpoint.values()) fresh.put(endpoint, new Stats());
+        Map<Endpoint, Stats> previous = stats;
+        stats = fresh;
+        return previous;
+    }
+
+    List<Thread> start(int clients, long seed) {
+        running = true;
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < clients; i++) {
+            SplittableRandom random = new SplittableRandom(seed + i);
+            Thread thread = new Thread(() -> run(random), "load-client-" + i);
+            thread.setDaemon(true);
+            thread.start();
+            threads.add(thread);
+        }
+        return threads;
+    }
+
+    void stop(List<Thread> threads) throws InterruptedException {
+        running = false;
+        for (Thread thread : threads) thread.join();
+    }
+
+    private void run(SplittableRandom random) {
+        while (running) {
+            Endpoint endpoint = draw[random.nextInt(draw.length)];
+            Loan loan = null;
+            if (endpoint == Endpoint.RETURN) {
+                loan = openLoans.poll();
+                if (loan == null) endpoint = Endpoint.ISSUE;
+            }
+            HttpRequest request = request(endpoint, loan, random);
+
+            long started = System.nanoTime();
+            HttpResponse<String> response;
+            try {
+                response = client.send(request, HttpResponse.BodyHandlers.ofString());
+            } catch (IOException e) {
+                record(endpoint, -1, System.nanoTime() - started);
+                continue;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            record(endpoint, response.statusCode(), System.nanoTime() - started);
+
+            if (endpoint == Endpoint.ISSUE && response.statusCode() == 201) issued(response.body());
+        }
+    }
+
+    private void record(Endpoint endpoint, int status, long nanos) {
+        Stats current = stats.get(endpoint);
+        current.latency.record(nanos);
+        if (status >= 200 && status < 400) {
+            current.ok.increment();
+        } else if (status >= 400 && status < 500 || status == 503) {
+            /* Turned down by a business rule, or shed by the concurrency limit */
+            current.rejected.increment();
+        } else {
+            current.errors.increment();
+        }
+    }
+
+    private void issued(String body) {
+        try (JsonReader reader = Json.createReader(new StringReader(body))) {
+            JsonObject note = reader.readObject();
+            int id = note.getInt("id");
+            String memberId = note.getString("memberId");
+            note.getJsonArray("books").getValuesAs(JsonString.class)
+                    .forEach(isbn -> openLoans.add(new Loan(memberId, id, isbn.getString())));
+        }
+    }
+
+    private HttpRequest request(Endpoint endpoint, Loan loan, SplittableRandom random) {
+        switch (endpoint) {
+            case SEARCH_BOOKS:
+                return get("/books?q=" + encode(Seeder.TITLE_WORDS[random.nextInt(Seeder.TITLE_WORDS.length)]) +
+                        "&size=20&page=" + (1 + random.nextInt(5)));
+            case BOOK:
+                return get("/books/" + isbns.get(random.nextInt(books)));
+            case MEMBERS:
+                return get("/members?size=20&page=" + (1 + random.nextInt(Math.max(members / 20, 1))));
+            case MEMBER:
+                return get("/members/" + memberIds.get(random.nextInt(members)));
+            case LOAN_HISTORY:
+                return get("/issue-notes/export?memberId=" + memberIds.get(random.nextInt(members)));
+            case ISSUE:
+                String first = isbns.get(random.nextInt(books));
+                String second = isbns.get(random.nextInt(books));
+                String picked = random.nextInt(3) == 0 && !first.equals(second) ?
+                        "\"" + first + "\", \"" + second + "\"" : "\"" + first + "\"";
+                return post("/issue-notes", "{\"memberId\": \"" + memberIds.get(random.nextInt(members)) +
+                        "\", \"books\": [" + picked + "]}");
+            case RETURN:
+                return post("/returns", "{\"memberId\": \"" + loan.memberId + "\", \"returnItems\": [" +
+                        "{\"issueNoteId\": " + loan.issueNoteId + ", \"isbn\": \"" + loan.isbn + "\"}]}");
+            case NEW_MEMBER:
+                int number = newMembers.incrementAndGet();
+                return post("/members", "{\"name\": \"Load Test Member\", \"address\": \"" + number +
+                        ", Main Street, Colombo\", \"contact\": \"" + String.format("099-%07d", number % 10_000_000) +
+                        "\"}");
+            default:
+                throw new AssertionError(endpoint);
+        }
+    }
+
+    private HttpRequest get(String path) {
+        return HttpRequest.newBuilder(URI.create(baseUrl + path)).timeout(Duration.ofSeconds(30)).GET().build();
+    }
+
+    private HttpRequest post(String path, String json) {
+        return HttpRequest.newBuilder(URI.create(baseUrl + path))
+                .timeout(Duration.ofSeconds(30))
+                .header("Content-Type", "application/json")
+                .POST(HttpRequest.BodyPublishers.ofString(json))
+                .build();
+    }
+
+    private static String encode(String value) {
+        return URLEncoder.encode(value, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,42 @@
+-- The tables the servlets query, with the keys and foreign keys of the production database
+CREATE TABLE book
+(
+    isbn   VARCHAR(25) PRIMARY KEY,
+    title  VARCHAR(100) NOT NULL,
+    author VARCHAR(100) NOT NULL,
+    copies INT          NOT NULL
+);
+
+CREATE TABLE member
+(
+    id      VARCHAR(36) PRIMARY KEY,
+    name    VARCHAR(100) NOT NULL,
+    address VARCHAR(500) NOT NULL,
+    contact VARCHAR(11)  NOT NULL
+);
+
+CREATE TABLE issue_note
+(
+    id        INT AUTO_INCREMENT PRIMARY KEY,
+    date      DATE        NOT NULL,
+    member_id VARCHAR(36) NOT NULL,
+    CONSTRAINT fk_issue_note_member FOREIGN KEY (member_id) REFERENCES member (id)
+);
+
+CREATE TABLE issue_item
+(
+    issue_id INT         NOT NULL,
+    isbn     VARCHAR(25) NOT NULL,
+    CONSTRAINT pk_issue_item PRIMARY KEY (issue_id, isbn),
+    CONSTRAINT fk_issue_item_issue_note FOREIGN KEY (issue_id) REFERENCES issue_note (id),
+    CONSTRAINT fk_issue_item_book FOREIGN KEY (isbn) REFERENCES book (isbn)
+);
+
+CREATE TABLE `return`
+(
+    date     DATE        NOT NULL,
+    issue_id INT         NOT NULL,
+    isbn     VARCHAR(25) NOT NULL,
+    CONSTRAINT pk_return PRIMARY KEY (issue_id, isbn),
+    CONSTRAINT fk_return_issue_item FOREIGN KEY (issue_id, isbn) REFERENCES issue_item (issue_id, isbn)
+);
@@ -1,69 +1,162 @@
 package lk.ijse.dep9.api;
 
 import jakarta.annotation.Resource;
-import jakarta.json.bind.JsonbBuilder;
 import jakarta.json.bind.JsonbException;
 import jakarta.servlet.*;
 import jakarta.servlet.http.*;
 import jakarta.servlet.annotation.*;
+import lk.ijse.dep9.api.util.CsvReader;
+import lk.ijse.dep9.api.util.Cursor;
+import lk.ijse.dep9.api.listener.AppContextListener;
 import lk.ijse.dep9.api.util.HttpServlet2;
+import lk.ijse.dep9.api.util.JsonCodec;
+import lk.ijse.dep9.api.util.JsonOutput;
+import lk.ijse.dep9.cache.AvailabilityLedger;
+import lk.ijse.dep9.cache.EntityCache;
+import lk.ijse.dep9.cache.SearchCountCache;
+import lk.ijse.dep9.cache.TableCounter;
+import lk.ijse.dep9.cache.VersionTracker;
 import lk.ijse.dep9.dto.BookDTO;
+import lk.ijse.dep9.index.BookIndex;
+import lk.ijse.dep9.metrics.ServerTiming;
 import lk.ijse.dep9.dto.MemberDTO;
 
 import javax.sql.DataSource;
+import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.StringReader;
 import java.sql.*;
 import java.util.ArrayList;
+import java.util.List;
 import java.util.UUID;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
-@WebServlet(name = "BookServlet", value = "/books/*", loadOnStartup = 0)
+@WebServlet(name = "BookServlet", value = "/books/*", loadOnStartup = 0, asyncSupported = true)
 public class BookServlet extends HttpServlet2 {
 
+    private static final int FLUSH_INTERVAL = 256;
+    private static final int IMPORT_BATCH_SIZE = 500;
+    private static final String[] IMPORT_COLUMNS = {"isbn", "title", "author", "copies"};
+
     @Resource(lookup = "java:comp/env/jdbc/dep9-lms")
     private DataSource pool;
 
+    private TableCounter bookCounter;
+    private SearchCountCache searchCounts;
+    private BookIndex bookIndex;
+    private EntityCache<String, BookDTO> bookCache;
+    private VersionTracker versions;
+    private AvailabilityLedger ledger;
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public void init() throws ServletException {
+        pool = connections(pool);
+        bookCounter = (TableCounter) getServletContext().getAttribute(AppContextListener.BOOK_COUNTER);
+        searchCounts = (SearchCountCache) getServletContext().getAttribute(AppContextListener.BOOK_SEARCH_COUNTS);
+        bookIndex = (BookIndex) getServletContext().getAttribute(AppContextListener.BOOK_INDEX);
+        bookCache = (EntityCache<String, BookDTO>) getServletContext().getAttribute(AppContextListener.BOOK_CACHE);
+        versions = (VersionTracker) getServletContext().getAttribute(AppContextListener.BOOK_VERSIONS);
+        ledger = (AvailabilityLedger) getServletContext().getAttribute(AppContextListener.AVAILABILITY_LEDGER);
+    }
+
+    /* The bulk import and the full listing, which is streamed */
+    @Override
+    protected boolean isLongRunning(HttpServletRequest request) {
+        String path = request.getPathInfo();
+        if (request.getMethod().equals("POST")) return path != null && path.matches("/bulk/?");
+        return request.getMethod().equals("GET") && (path == null || path.equals("/")) &&
+                request.getParameter("q") == null && request.getParameter("size") == null;
+    }
+
     @Override
     protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+        get(request, response, false);
+    }
+
+    @Override
+    protected boolean answerInline(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+        return request.getMethod().equals("GET") && get(request, response, true);
+    }
+
+    /* Inline, only what the ETags, the cache and the index can answer is; for the rest it returns false before
+       writing anything, so the request can go to the executor */
+    private boolean get(HttpServletRequest request, HttpServletResponse response, boolean inline) throws IOException {
         if (request.getPathInfo() == null || request.getPathInfo().equals("/")) {
+            if (notModified(versions.tableTag(), true, request, response)) return true;
 
             String query = request.getParameter("q");
             String size = request.getParameter("size");
             String page = request.getParameter("page");
-
-            if (query != null && size != null && page != null) {
-                if (!size.matches("\\d+") || !page.matches("\\d+")) {
+            String after = request.getParameter("after");
+
+            if (size != null && after != null) {
+                String lastIsbn;
+                try {
+                    lastIsbn = Cursor.decode(after);
+                } catch (IllegalArgumentException e) {
+                    response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Invalid cursor");
+                    return true;
+                }
+                if (!size.matches("[1-9]\\d*")) {
+                    response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Invalid size");
+                } else {
+                    if (inline) return false;
+                    loadBooksAfter(query, lastIsbn, Integer.parseInt(size), response);
+                }
+            } else if (query != null && size != null && page != null) {
+                long validating = ServerTiming.start();
+                boolean valid = size.matches("\\d+") && page.matches("\\d+");
+                ServerTiming.stop(ServerTiming.Phase.VALIDATE, validating);
+                if (!valid) {
                     response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Invalid page or size");
                 } else {
+                    if (inline && !bookIndex.isReady()) return false;
                     searchPaginatedBooks(query, Integer.parseInt(size), Integer.parseInt(page), response);
                 }
             } else if (query != null) {
+                if (inline && !bookIndex.isReady()) return false;
                 searchBooks(query, response);
             } else if (size != null && page != null) {
                 if (!size.matches("\\d+") || !page.matches("\\d+")) {
                     response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Invalid page or size");
                 } else {
+                    if (inline) return false;
                     loadAllPaginatedBooks(Integer.parseInt(size), Integer.parseInt(page), response);
                 }
             } else {
+                if (inline) return false;
                 loadAllBooks(response);
             }
         } else {
             Matcher matcher = Pattern.compile("^/([0-9][0-9\\\\-]*[0-9])/?$")
                     .matcher(request.getPathInfo());
             if (matcher.matches()) {
-                getBookDetails(matcher.group(1), response);
+                String etag = versions.rowTag(matcher.group(1));
+                if (notModified(etag, false, request, response)) return true;
+                if (inline) {
+                    BookDTO book = bookCache.getIfPresent(matcher.group(1));
+                    if (book == null) return false;
+                    if (notModified(etag, true, request, response)) return true;
+                    response.setContentType(JsonCodec.CONTENT_TYPE);
+                    JsonCodec.writeBook(book, response.getOutputStream());
+                    return true;
+                }
+                getBookDetails(matcher.group(1), etag, request, response);
             } else {
                 response.sendError(HttpServletResponse.SC_NOT_IMPLEMENTED);
             }
         }
+        return true;
     }
 
     @Override
     protected void doPost(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
         if (request.getPathInfo() == null || request.getPathInfo().equals("/")) {
             saveBook(request, response);
+        } else if (request.getPathInfo().matches("/bulk/?")) {
+            importBooks(request, response);
         }else{
             response.sendError(HttpServletResponse.SC_NOT_IMPLEMENTED);
         }
@@ -87,39 +180,39 @@ public class BookServlet extends HttpServlet2 {
     }
 
     private void loadAllBooks(HttpServletResponse response) throws IOException {
-        try (Connection connection = pool.getConnection()) {
-            Statement stm = connection.createStatement();
+        /* Stream rows straight from the server instead of materializing the whole table. The statement has to be
+           closed even if the client goes away, a half-read stream leaves the connection unusable */
+        try (Connection connection = pool.getConnection();
+             Statement stm = connection.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+            stm.setFetchSize(Integer.MIN_VALUE);
             String sql = "SELECT * FROM book";
             ResultSet rst = stm.executeQuery(sql);
-            ArrayList<BookDTO> books = new ArrayList<>();
 
+            response.setContentType(JsonCodec.CONTENT_TYPE);
+            JsonOutput json = new JsonOutput(response.getOutputStream());
+            json.write('[');
+            int rows = 0;
             while (rst.next()) {
-                String isbn = rst.getString("isbn");
-                String title = rst.getString("title");
-                String author = rst.getString("author");
-                int copies = rst.getInt("copies");
-                books.add(new BookDTO(isbn, title, author, copies));
+                if (rows > 0) json.write(',');
+                JsonCodec.writeBook(json, rst.getString("isbn"), rst.getString("title"),
+                        rst.getString("author"), rst.getInt("copies"));
+                if (++rows % FLUSH_INTERVAL == 0) json.flush();
             }
-
-            response.setContentType("application/json");
-            JsonbBuilder.create().toJson(books, response.getWriter());
+            json.write(']');
+            json.close();
         } catch (SQLException e) {
             e.printStackTrace();
+            if (response.isCommitted()) return;
             response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Failed to fetch books");
         }
     }
 
     private void loadAllPaginatedBooks(int size, int page, HttpServletResponse response) throws IOException {
         try (Connection connection = pool.getConnection()) {
-            Statement stmCount = connection.createStatement();
             PreparedStatement stm = connection.prepareStatement("SELECT * FROM book LIMIT ? OFFSET ?");
-            String sql = "SELECT COUNT(isbn) FROM book";
-
-            ResultSet rst = stmCount.executeQuery(sql);
-            rst.next();
 
-            int totalBooks = rst.getInt(1);
-            response.addIntHeader("X-Total-Count", totalBooks);
+            long totalBooks = bookCounter.get(connection);
+            response.addHeader("X-Total-Count", String.valueOf(totalBooks));
 
             stm.setInt(1, size);
             stm.setInt(2, (page - 1) * size);
@@ -135,8 +228,8 @@ public class BookServlet extends HttpServlet2 {
                 books.add(new BookDTO(isbn, title, author, copies));
             }
 
-            response.setContentType("application/json");
-            JsonbBuilder.create().toJson(books, response.getWriter());
+            response.setContentType(JsonCodec.CONTENT_TYPE);
+            JsonCodec.writeBooks(books, response.getOutputStream());
         } catch (SQLException e) {
             e.printStackTrace();
             response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Failed to fetch books");
@@ -144,6 +237,12 @@ public class BookServlet extends HttpServlet2 {
     }
 
     private void searchBooks(String query, HttpServletResponse response) throws IOException {
+        if (bookIndex.isReady()) {
+            response.setContentType(JsonCodec.CONTENT_TYPE);
+            JsonCodec.writeBooks(bookIndex.search(query), response.getOutputStream());
+            return;
+        }
+
         try (Connection connection = pool.getConnection()) {
             PreparedStatement stm = connection.
                     prepareStatement("SELECT * FROM book WHERE isbn LIKE ? OR title LIKE ? OR author LIKE ?");
@@ -162,8 +261,8 @@ public class BookServlet extends HttpServlet2 {
                 books.add(new BookDTO(isbn, title, author, copies));
             }
 
-            response.setContentType("application/json");
-            JsonbBuilder.create().toJson(books, response.getWriter());
+            response.setContentType(JsonCodec.CONTENT_TYPE);
+            JsonCodec.writeBooks(books, response.getOutputStream());
 
         } catch (SQLException e) {
             e.printStackTrace();
@@ -172,19 +271,37 @@ public class BookServlet extends HttpServlet2 {
     }
 
     private void searchPaginatedBooks(String query, int size, int page, HttpServletResponse response) throws IOException {
+        if (bookIndex.isReady()) {
+            long searching = ServerTiming.start();
+            List<BookDTO> books = bookIndex.search(query);
+            ServerTiming.stop(ServerTiming.Phase.INDEX, searching);
+            response.addIntHeader("X-Total-Count", books.size());
+            int from = (int) Math.min((long) (page - 1) * size, books.size());
+            int to = (int) Math.min((long) from + size, books.size());
+            response.setContentType(JsonCodec.CONTENT_TYPE);
+            long serializing = ServerTiming.start();
+            JsonCodec.writeBooks(from < 0 ? List.of() : books.subList(from, to), response.getOutputStream());
+            ServerTiming.stop(ServerTiming.Phase.SERIALIZE, serializing);
+            return;
+        }
+
         try (Connection connection = pool.getConnection()) {
-            PreparedStatement stmCount = connection.prepareStatement("SELECT COUNT(isbn) FROM book WHERE isbn LIKE ? OR title LIKE ? OR author LIKE ?");
             PreparedStatement stm = connection.prepareStatement("SELECT * FROM book WHERE isbn LIKE ? OR title LIKE ? OR author LIKE ? LIMIT ? OFFSET ?");
 
+            String searchKey = query;
+            Long totalBooks = searchCounts.get(query);
             query = "%" + query + "%";
-            stmCount.setString(1, query);
-            stmCount.setString(2, query);
-            stmCount.setString(3, query);
-            ResultSet rst = stmCount.executeQuery();
-            rst.next();
-
-            int totalBooks = rst.getInt(1);
-            response.addIntHeader("X-Total-Count", totalBooks);
+            if (totalBooks == null) {
+                PreparedStatement stmCount = connection.prepareStatement("SELECT COUNT(isbn) FROM book WHERE isbn LIKE ? OR title LIKE ? OR author LIKE ?");
+                stmCount.setString(1, query);
+                stmCount.setString(2, query);
+                stmCount.setString(3, query);
+                ResultSet rst = stmCount.executeQuery();
+                rst.next();
+                totalBooks = rst.getLong(1);
+                searchCounts.put(searchKey, totalBooks);
+            }
+            response.addHeader("X-Total-Count", String.valueOf(totalBooks));
 
             stm.setString(1, query);
             stm.setString(2, query);
@@ -204,26 +321,67 @@ public class BookServlet extends HttpServlet2 {
                 books.add(new BookDTO(isbn, title, author, copies));
             }
 
-            response.setContentType("application/json");
-            JsonbBuilder.create().toJson(books, response.getWriter());
+            response.setContentType(JsonCodec.CONTENT_TYPE);
+            long serializing = ServerTiming.start();
+            JsonCodec.writeBooks(books, response.getOutputStream());
+            ServerTiming.stop(ServerTiming.Phase.SERIALIZE, serializing);
         } catch (SQLException e) {
             e.printStackTrace();
             response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Failed to fetch books");
         }
     }
 
-    private void getBookDetails(String isbn, HttpServletResponse response) throws IOException {
+    /* Keyset pagination: seeks past the last isbn of the previous page instead of skipping rows with OFFSET */
+    private void loadBooksAfter(String query, String lastIsbn, int size, HttpServletResponse response) throws IOException {
         try (Connection connection = pool.getConnection()) {
-            PreparedStatement stm = connection.prepareStatement("SELECT * FROM book WHERE isbn=?");
-            stm.setString(1, isbn);
+            PreparedStatement stm;
+            if (query == null) {
+                stm = connection.prepareStatement("SELECT * FROM book WHERE isbn > ? ORDER BY isbn LIMIT ?");
+                stm.setString(1, lastIsbn);
+                stm.setInt(2, size + 1);
+            } else {
+                stm = connection.prepareStatement("SELECT * FROM book WHERE (isbn LIKE ? OR title LIKE ? OR author LIKE ?) " +
+                        "AND isbn > ? ORDER BY isbn LIMIT ?");
+                query = "%" + query + "%";
+                stm.setString(1, query);
+                stm.setString(2, query);
+                stm.setString(3, query);
+                stm.setString(4, lastIsbn);
+                stm.setInt(5, size + 1);
+            }
             ResultSet rst = stm.executeQuery();
-            if (rst.next()) {
+
+            ArrayList<BookDTO> books = new ArrayList<>();
+            boolean hasMore = false;
+            while (rst.next()) {
+                if (books.size() == size) {
+                    hasMore = true;
+                    break;
+                }
+                String isbn = rst.getString("isbn");
                 String title = rst.getString("title");
                 String author = rst.getString("author");
                 int copies = rst.getInt("copies");
-                BookDTO book = new BookDTO(isbn, title, author, copies);
-                response.setContentType("application/json");
-                JsonbBuilder.create().toJson(book, response.getWriter());
+                books.add(new BookDTO(isbn, title, author, copies));
+            }
+
+            if (query == null) response.addHeader("X-Total-Count", String.valueOf(bookCounter.get(connection)));
+            if (hasMore) response.setHeader("X-Next-Cursor", Cursor.encode(books.get(books.size() - 1).getIsbn()));
+            response.setContentType(JsonCodec.CONTENT_TYPE);
+            JsonCodec.writeBooks(books, response.getOutputStream());
+        } catch (SQLException e) {
+            e.printStackTrace();
+            response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Failed to fetch books");
+        }
+    }
+
+    private void getBookDetails(String isbn, String etag, HttpServletRequest request, HttpServletResponse response) throws IOException {
+        try {
+            BookDTO book = bookCache.get(isbn, this::findBook);
+            if (book != null) {
+                if (notModified(etag, true, request, response)) return;
+                response.setContentType(JsonCodec.CONTENT_TYPE);
+                JsonCodec.writeBook(book, response.getOutputStream());
             } else {
                 response.sendError(HttpServletResponse.SC_NOT_FOUND, "Invalid book isbn");
             }
@@ -233,27 +391,27 @@ public class BookServlet extends HttpServlet2 {
         }
     }
 
+    private BookDTO findBook(String isbn) throws SQLException {
+        try (Connection connection = pool.getConnection()) {
+            PreparedStatement stm = connection.prepareStatement("SELECT * FROM book WHERE isbn=?");
+            stm.setString(1, isbn);
+            ResultSet rst = stm.executeQuery();
+            if (!rst.next()) return null;
+            String title = rst.getString("title");
+            String author = rst.getString("author");
+            int copies = rst.getInt("copies");
+            return new BookDTO(isbn, title, author, copies);
+        }
+    }
+
     private void saveBook(HttpServletRequest request, HttpServletResponse response) throws IOException {
         try {
             if (request.getContentType() == null || !request.getContentType().startsWith("application/json")) {
                 throw new JsonbException("Invalid JSON");
             }
 
-            BookDTO book = JsonbBuilder.create().
-                    fromJson(request.getReader(), BookDTO.class);
-
-            if(book.getIsbn() == null || !book.getIsbn().matches("([0-9][0-9\\\\-]*[0-9])")){
-                throw new JsonbException("Book isbn is empty or invalid");
-            }else if (book.getTitle() == null ||
-                    !book.getTitle().matches(".+")) {
-                throw new JsonbException("Book title is empty or invalid");
-            } else if (book.getAuthor() == null ||
-                    !book.getAuthor().matches("[A-Za-z ]+")) {
-                throw new JsonbException("Author is empty or invalid");
-            } else if (book.getCopies() == null ||
-                    book.getCopies() < 1) {
-                throw new JsonbException("Copies is empty or invalid");
-            }
+            BookDTO book = JsonCodec.readBook(request.getInputStream());
+            validateBook(book);
 
             try (Connection connection = pool.getConnection()) {
 
@@ -274,9 +432,15 @@ public class BookServlet extends HttpServlet2 {
 
                 int affectedRows = stm.executeUpdate();
                 if (affectedRows == 1) {
+                    bookCounter.increment();
+                    searchCounts.invalidateAll();
+                    bookIndex.put(book);
+                    bookCache.invalidate(book.getIsbn());
+                    versions.bump(book.getIsbn());
+                    ledger.setCopies(book.getIsbn(), book.getCopies());
                     response.setStatus(HttpServletResponse.SC_CREATED);
-                    response.setContentType("application/json");
-                    JsonbBuilder.create().toJson(book, response.getWriter());
+                    response.setContentType(JsonCodec.CONTENT_TYPE);
+                    JsonCodec.writeBook(book, response.getOutputStream());
                 } else {
                     throw new SQLException("Something went wrong");
                 }
@@ -289,12 +453,189 @@ public class BookServlet extends HttpServlet2 {
         }
     }
 
+    private static void validateBook(BookDTO book) {
+        if (book == null) {
+            throw new JsonbException("Invalid JSON");
+        } else if(book.getIsbn() == null || !book.getIsbn().matches("([0-9][0-9\\\\-]*[0-9])")){
+            throw new JsonbException("Book isbn is empty or invalid");
+        }else if (book.getTitle() == null ||
+                !book.getTitle().matches(".+")) {
+            throw new JsonbException("Book title is empty or invalid");
+        } else if (book.getAuthor() == null ||
+                !book.getAuthor().matches("[A-Za-z ]+")) {
+            throw new JsonbException("Author is empty or invalid");
+        } else if (book.getCopies() == null ||
+                book.getCopies() < 1) {
+            throw new JsonbException("Copies is empty or invalid");
+        }
+    }
+
+    /**
+     * Upserts the books of a CSV or NDJSON body in batches of {@link #IMPORT_BATCH_SIZE}, each in its own transaction.
+     * Rows are validated like {@link #saveBook}; the response streams one NDJSON line per rejected row
+     * followed by a summary line.
+     */
+    private void importBooks(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        String contentType = request.getContentType() == null ? "" : request.getContentType().toLowerCase();
+        boolean csv = contentType.startsWith("text/csv");
+        if (!csv && !contentType.startsWith("application/x-ndjson") && !contentType.startsWith("application/ndjson")) {
+            response.sendError(HttpServletResponse.SC_UNSUPPORTED_MEDIA_TYPE, "Expected text/csv or application/x-ndjson");
+            return;
+        }
+        if (request.getCharacterEncoding() == null) request.setCharacterEncoding("UTF-8");
+        BufferedReader reader = request.getReader();
+        CsvReader csvReader = csv ? new CsvReader(reader) : null;
+        int[] columns = {0, 1, 2, 3};
+
+        try (Connection connection = pool.getConnection()) {
+            PreparedStatement stm = connection.prepareStatement("INSERT INTO book (isbn, title, author, copies) " +
+                    "VALUES (?, ?, ?, ?) " +
+                    "ON DUPLICATE KEY UPDATE title=VALUES(title), author=VALUES(author), copies=VALUES(copies)");
+
+            response.setContentType(JsonCodec.NDJSON_CONTENT_TYPE);
+            try (JsonOutput json = new JsonOutput(response.getOutputStream())) {
+                List<BookDTO> batch = new ArrayList<>(IMPORT_BATCH_SIZE);
+                List<Long> batchRows = new ArrayList<>(IMPORT_BATCH_SIZE);
+                long rows = 0;
+                long imported = 0;
+                boolean first = true;
+
+                while (true) {
+                    BookDTO book;
+                    if (csv) {
+                        List<String> record = csvReader.next();
+                        if (record == null) break;
+                        if (record.size() == 1 && record.get(0).isBlank()) continue;
+                        if (first) {
+                            first = false;
+                            if (readHeader(record, columns)) continue;
+                        }
+                        rows++;
+                        book = toBook(record, columns);
+                    } else {
+                        String line = reader.readLine();
+                        if (line == null) break;
+                        if (line.isBlank()) continue;
+                        rows++;
+                        try {
+                            book = JsonCodec.readBook(new StringReader(line));
+                        } catch (JsonbException e) {
+                            JsonCodec.writeImportError(json, rows, null, e.getMessage());
+                            continue;
+                        }
+                    }
+
+                    try {
+                        validateBook(book);
+                    } catch (JsonbException e) {
+                        JsonCodec.writeImportError(json, rows, book == null ? null : book.getIsbn(), e.getMessage());
+                        continue;
+                    }
+                    batch.add(book);
+                    batchRows.add(rows);
+
+                    if (batch.size() == IMPORT_BATCH_SIZE) {
+                        imported += importBatch(connection, stm, batch, batchRows, json);
+                        json.flush();
+                    }
+                }
+                if (!batch.isEmpty()) imported += importBatch(connection, stm, batch, batchRows, json);
+
+                bookCounter.resync(connection);
+                JsonCodec.writeImportSummary(json, rows, imported, rows - imported);
+            }
+        } catch (SQLException e) {
+            e.printStackTrace();
+            if (!response.isCommitted()) {
+                response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Failed to import the books");
+            }
+        }
+    }
+
+    /* Maps the columns by name if the first record is a header, otherwise they are expected in the default order */
+    private static boolean readHeader(List<String> record, int[] columns) {
+        int[] mapped = {-1, -1, -1, -1};
+        for (int i = 0; i < record.size(); i++) {
+            for (int j = 0; j < IMPORT_COLUMNS.length; j++) {
+                if (record.get(i).trim().equalsIgnoreCase(IMPORT_COLUMNS[j])) mapped[j] = i;
+            }
+        }
+        if (mapped[0] == -1) return false;
+        System.arraycopy(mapped, 0, columns, 0, columns.length);
+        return true;
+    }
+
+    private static BookDTO toBook(List<String> record, int[] columns) {
+        String[] values = new String[columns.length];
+        for (int i = 0; i < columns.length; i++) {
+            values[i] = columns[i] >= 0 && columns[i] < record.size() ? record.get(columns[i]).trim() : null;
+        }
+        Integer copies;
+        try {
+            copies = values[3] == null ? null : Integer.valueOf(values[3]);
+        } catch (NumberFormatException e) {
+            copies = null;
+        }
+        return new BookDTO(values[0], values[1], values[2], copies);
+    }
+
+    /* A batch that fails is rolled back and its rows are retried one at a time, so only the rows that fail themselves
+       are reported and the import carries on */
+    private int importBatch(Connection connection, PreparedStatement stm, List<BookDTO> batch, List<Long> batchRows,
+                            JsonOutput json) throws SQLException, IOException {
+        List<BookDTO> imported = new ArrayList<>(batch.size());
+        try {
+            connection.setAutoCommit(false);
+            for (BookDTO book : batch) {
+                setImportParameters(stm, book);
+                stm.addBatch();
+            }
+            stm.executeBatch();
+            connection.commit();
+            imported.addAll(batch);
+        } catch (SQLException e) {
+            connection.rollback();
+            stm.clearBatch();
+            connection.setAutoCommit(true);
+            for (int i = 0; i < batch.size(); i++) {
+                BookDTO book = batch.get(i);
+                try {
+                    setImportParameters(stm, book);
+                    stm.executeUpdate();
+                    imported.add(book);
+                } catch (SQLException rowError) {
+                    JsonCodec.writeImportError(json, batchRows.get(i), book.getIsbn(), rowError.getMessage());
+                }
+            }
+        } finally {
+            connection.setAutoCommit(true);
+        }
+
+        if (!imported.isEmpty()) searchCounts.invalidateAll();
+        for (BookDTO book : imported) {
+            bookIndex.put(book);
+            bookCache.invalidate(book.getIsbn());
+            versions.bump(book.getIsbn());
+            ledger.setCopies(book.getIsbn(), book.getCopies());
+        }
+        batch.clear();
+        batchRows.clear();
+        return imported.size();
+    }
+
+    private static void setImportParameters(PreparedStatement stm, BookDTO book) throws SQLException {
+        stm.setString(1, book.getIsbn());
+        stm.setString(2, book.getTitle());
+        stm.setString(3, book.getAuthor());
+        stm.setInt(4, book.getCopies());
+    }
+
     private void updateBookDetails(String isbn, HttpServletRequest request, HttpServletResponse response) throws IOException {
         try {
             if (request.getContentType() == null || !request.getContentType().startsWith("application/json")) {
                 throw new JsonbException("Invalid JSON");
             }
-            BookDTO book = JsonbBuilder.create().fromJson(request.getReader(), BookDTO.class);
+            BookDTO book = JsonCodec.readBook(request.getInputStream());
 
             if (book.getIsbn() == null || !book.getIsbn().equalsIgnoreCase(isbn)) {
                 throw new JsonbException("Book ISBN is empty or invalid");
@@ -318,6 +659,11 @@ public class BookServlet extends HttpServlet2 {
                 stm.setString(4, book.getIsbn());
 
                 if (stm.executeUpdate() == 1) {
+                    searchCounts.invalidateAll();
+                    bookIndex.put(book);
+                    bookCache.invalidate(book.getIsbn());
+                    versions.bump(book.getIsbn());
+                    ledger.setCopies(book.getIsbn(), book.getCopies());
                     response.setStatus(HttpServletResponse.SC_NO_CONTENT);
                 } else {
                     response.sendError(HttpServletResponse.SC_NOT_FOUND, "Book does not exist");
@@ -1,27 +1,168 @@
 package lk.ijse.dep9.api;
 
 import jakarta.annotation.Resource;
-import jakarta.json.bind.JsonbBuilder;
 import jakarta.json.bind.JsonbException;
 import jakarta.servlet.ServletException;
 import jakarta.servlet.annotation.WebServlet;
 import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
 import lk.ijse.dep9.api.util.HttpServlet2;
+import lk.ijse.dep9.api.listener.AppContextListener;
+import lk.ijse.dep9.api.util.CsvWriter;
+import lk.ijse.dep9.api.util.Exports;
+import lk.ijse.dep9.api.util.JsonCodec;
+import lk.ijse.dep9.api.util.JsonOutput;
+import lk.ijse.dep9.cache.AvailabilityLedger;
+import lk.ijse.dep9.cache.LoanRegistry;
+import lk.ijse.dep9.db.InList;
 import lk.ijse.dep9.dto.IssueNoteDTO;
+import lk.ijse.dep9.metrics.ServerTiming;
 
 import javax.sql.DataSource;
 import java.io.IOException;
 import java.sql.*;
 import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Semaphore;
 import java.util.stream.Collectors;
 
-@WebServlet(name = "IssueNoteServlet", value = "/issue-notes/*")
+@WebServlet(name = "IssueNoteServlet", value = "/issue-notes/*", asyncSupported = true)
 public class IssueNoteServlet extends HttpServlet2 {
 
     @Resource(lookup = "java:comp/env/jdbc/dep9-lms")
     private DataSource pool;
 
+    private AvailabilityLedger ledger;
+    private LoanRegistry loanRegistry;
+    private Semaphore exportPermits;
+
+    @Override
+    public void init() throws ServletException {
+        pool = connections(pool);
+        ledger = (AvailabilityLedger) getServletContext().getAttribute(AppContextListener.AVAILABILITY_LEDGER);
+        loanRegistry = (LoanRegistry) getServletContext().getAttribute(AppContextListener.LOAN_REGISTRY);
+        exportPermits = (Semaphore) getServletContext().getAttribute(AppContextListener.EXPORT_PERMITS);
+    }
+
+    @Override
+    protected boolean isLongRunning(HttpServletRequest request) {
+        return request.getMethod().equals("GET") && request.getPathInfo() != null &&
+                request.getPathInfo().matches("/export/?");
+    }
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+        if (request.getPathInfo() != null && request.getPathInfo().matches("/export/?")) {
+            exportIssueNotes(request, response);
+        } else {
+            response.sendError(HttpServletResponse.SC_NOT_IMPLEMENTED);
+        }
+    }
+
+    /* Issue notes in id order, filtered by date range, member and a resume point */
+    private void exportIssueNotes(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        String after = request.getParameter("after");
+        String memberId = request.getParameter("memberId");
+        LocalDate from;
+        LocalDate to;
+        try {
+            from = request.getParameter("from") == null ? null : LocalDate.parse(request.getParameter("from"));
+            to = request.getParameter("to") == null ? null : LocalDate.parse(request.getParameter("to"));
+        } catch (DateTimeParseException e) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Invalid date range");
+            return;
+        }
+        if (after != null && !after.matches("\\d{1,9}")) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Invalid issue note id");
+            return;
+        } else if (memberId != null && !memberId.matches("([A-Fa-f0-9]{8}(-[A-Fa-f0-9]{4}){3}-[A-Fa-f0-9]{12})")) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Invalid member id");
+            return;
+        }
+        boolean csv = Exports.isCsv(request);
+
+        StringBuilder sql = new StringBuilder("SELECT `in`.id, `in`.date, `in`.member_id, ii.isbn FROM issue_note `in` " +
+                "LEFT OUTER JOIN issue_item ii ON `in`.id = ii.issue_id WHERE 1 = 1");
+        if (after != null) sql.append(" AND `in`.id > ?");
+        if (from != null) sql.append(" AND `in`.date >= ?");
+        if (to != null) sql.append(" AND `in`.date <= ?");
+        if (memberId != null) sql.append(" AND `in`.member_id = ?");
+        sql.append(" ORDER BY `in`.id");
+
+        if (!exportPermits.tryAcquire()) {
+            response.setHeader("Retry-After", "30");
+            response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Too many exports are running, try again later");
+            return;
+        }
+        try (Connection connection = pool.getConnection()) {
+            response.setContentType(Exports.contentType(csv));
+            Exports.stream(connection, sql.toString(), stm -> {
+                int index = 1;
+                if (after != null) stm.setInt(index++, Integer.parseInt(after));
+                if (from != null) stm.setDate(index++, Date.valueOf(from));
+                if (to != null) stm.setDate(index++, Date.valueOf(to));
+                if (memberId != null) stm.setString(index, memberId);
+            }, rst -> {
+                if (csv) {
+                    writeIssueNotesCsv(rst, response);
+                } else {
+                    writeIssueNotesNdjson(rst, response);
+                }
+            });
+        } catch (SQLException e) {
+            e.printStackTrace();
+            if (!response.isCommitted()) {
+                response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Failed to export the issue notes");
+            }
+        } finally {
+            exportPermits.release();
+        }
+    }
+
+    /* One row per issued book */
+    private static void writeIssueNotesCsv(ResultSet rst, HttpServletResponse response) throws SQLException, IOException {
+        try (CsvWriter writer = new CsvWriter(response.getOutputStream())) {
+            writer.writeRecord("id", "date", "memberId", "isbn");
+            int rows = 0;
+            while (rst.next()) {
+                writer.writeRecord(String.valueOf(rst.getInt("id")), rst.getDate("date").toLocalDate().toString(),
+                        rst.getString("member_id"), rst.getString("isbn"));
+                if (++rows % Exports.FLUSH_INTERVAL == 0) writer.flush();
+            }
+        }
+    }
+
+    /* One line per issue note, the rows of a note arrive together because of the ordering */
+    private static void writeIssueNotesNdjson(ResultSet rst, HttpServletResponse response) throws SQLException, IOException {
+        try (JsonOutput json = new JsonOutput(response.getOutputStream())) {
+            IssueNoteDTO issueNote = null;
+            int notes = 0;
+            while (rst.next()) {
+                int id = rst.getInt("id");
+                if (issueNote == null || issueNote.getId() != id) {
+                    if (issueNote != null) {
+                        JsonCodec.writeIssueNote(json, issueNote);
+                        json.write('\n');
+                        if (++notes % Exports.FLUSH_INTERVAL == 0) json.flush();
+                    }
+                    issueNote = new IssueNoteDTO(id, rst.getDate("date").toLocalDate(),
+                            rst.getString("member_id"), new ArrayList<>());
+                }
+                String isbn = rst.getString("isbn");
+                if (isbn != null) issueNote.getBooks().add(isbn);
+            }
+            if (issueNote != null) {
+                JsonCodec.writeIssueNote(json, issueNote);
+                json.write('\n');
+            }
+        }
+    }
+
     @Override
     protected void doPost(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
         if (request.getPathInfo() != null && !request.getPathInfo().equals("/")) {
@@ -34,7 +175,9 @@ public class IssueNoteServlet extends HttpServlet2 {
                 throw new JsonbException("Invalid JSON");
             }
 
-            IssueNoteDTO issueNote = JsonbBuilder.create().fromJson(request.getReader(), IssueNoteDTO.class);
+            long parsing = ServerTiming.start();
+            IssueNoteDTO issueNote = JsonCodec.readIssueNote(request.getInputStream());
+            ServerTiming.stop(ServerTiming.Phase.PARSE, parsing);
             createNewIssueNote(issueNote, response);
         } catch (JsonbException e) {
             response.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
@@ -43,6 +186,7 @@ public class IssueNoteServlet extends HttpServlet2 {
 
     private void createNewIssueNote(IssueNoteDTO issueNoteDTO, HttpServletResponse response) throws IOException {
         /* Data Validation */
+        long validating = ServerTiming.start();
         if (issueNoteDTO.getMemberId() == null ||
                 !issueNoteDTO.getMemberId().matches("([A-Fa-f0-9]{8}(-[A-Fa-f0-9]{4}){3}-[A-Fa-f0-9]{12})")) {
             throw new JsonbException("The member id is empty or invalid");
@@ -57,54 +201,59 @@ public class IssueNoteServlet extends HttpServlet2 {
                 issueNoteDTO.getBooks().size()) {
             throw new JsonbException("Duplicate isbn has been found");
         }
+        ServerTiming.stop(ServerTiming.Phase.VALIDATE, validating);
 
         /* Business Validation */
+        List<String> reserved = new ArrayList<>();
+        boolean placed = false;
+        LoanRegistry.MemberLoans loans = null;
         try (Connection connection = pool.getConnection()) {
             PreparedStatement stmExist = connection.prepareStatement("SELECT id FROM member WHERE id=?");
             stmExist.setString(1, issueNoteDTO.getMemberId());
             if (!stmExist.executeQuery().next()) {
                 throw new JsonbException("Member does not exist within the database");
             }
+            loans = loanRegistry.lock(issueNoteDTO.getMemberId(), connection);
 
-            PreparedStatement stm = connection.prepareStatement(
-                    "SELECT b.title, ((b.copies - COUNT(issue_item.isbn)) > 0) as `availability` FROM issue_item " +
-                            "    LEFT OUTER JOIN `return` r ON issue_item.issue_id = r.issue_id and issue_item.isbn = r.isbn " +
-                            "    RIGHT OUTER JOIN book b on issue_item.isbn = b.isbn " +
-                            "    WHERE r.date IS NULL and b.isbn = ? GROUP BY b.isbn");
-
-            PreparedStatement stmDuplicateExist = connection.prepareStatement(
-                    "SELECT name, ii.isbn " +
-                            "FROM member " +
-                            "         INNER JOIN issue_note `in` ON member.id = `in`.member_id " +
-                            "         INNER JOIN issue_item ii ON `in`.id = ii.issue_id " +
-                            "         LEFT OUTER JOIN `return` r ON ii.issue_id = r.issue_id and ii.isbn = r.isbn " +
-                            "WHERE r.date IS NULL AND member.id = ? AND ii.isbn = ?"
-            );
-            stmDuplicateExist.setString(1, issueNoteDTO.getMemberId());
+            /* Books the ledger can't answer for are looked up together, the checks still run in request order */
+            Set<String> unknown = issueNoteDTO.getBooks().stream()
+                    .filter(isbn -> !ledger.isReady() || !ledger.contains(isbn)).collect(Collectors.toSet());
+            Map<String, Boolean> availability = new HashMap<>();
+            if (!unknown.isEmpty()) {
+                PreparedStatement stm = connection.prepareStatement(
+                        "SELECT b.isbn, (b.copies - COUNT(ii.isbn) + COUNT(r.isbn)) > 0 AS `availability` FROM book b " +
+                                "    LEFT OUTER JOIN issue_item ii ON ii.isbn = b.isbn " +
+                                "    LEFT OUTER JOIN `return` r ON ii.issue_id = r.issue_id AND ii.isbn = r.isbn " +
+                                "    WHERE b.isbn IN (" + InList.placeholders(unknown.size(), "?") + ") " +
+                                "    GROUP BY b.isbn, b.copies");
+                List<String> isbns = new ArrayList<>(unknown);
+                for (int i = 0; i < InList.slots(isbns.size()); i++) {
+                    stm.setString(i + 1, isbns.get(Math.min(i, isbns.size() - 1)));
+                }
+                ResultSet rst = stm.executeQuery();
+                while (rst.next()) {
+                    availability.put(rst.getString("isbn"), rst.getBoolean("availability"));
+                }
+            }
 
             for (String isbn : issueNoteDTO.getBooks()) {
-                stm.setString(1, isbn);
-                stmDuplicateExist.setString(2, isbn);
-                ResultSet rst = stm.executeQuery();
-                ResultSet rst2 = stmDuplicateExist.executeQuery();
-                if (!rst.next()) throw new JsonbException(isbn + " book doesn't exist within the database");
-                if (!rst.getBoolean("availability")) {
-                    throw new JsonbException(isbn + " book is not available at the moment");
+                /* A reserved copy is held until the issue note has either been committed or abandoned */
+                if (!unknown.contains(isbn)) {
+                    if (!ledger.tryReserve(isbn)) {
+                        throw new JsonbException(isbn + " book is not available at the moment");
+                    }
+                    reserved.add(isbn);
+                } else {
+                    Boolean available = availability.get(isbn);
+                    if (available == null) throw new JsonbException(isbn + " book doesn't exist within the database");
+                    if (!available) {
+                        throw new JsonbException(isbn + " book is not available at the moment");
+                    }
                 }
-                if (rst2.next()) throw new JsonbException(isbn + " book has been already issued to the same member");
+                if (loans.contains(isbn)) throw new JsonbException(isbn + " book has been already issued to the same member");
             }
 
-            PreparedStatement stm2 = connection.prepareStatement(
-                    "SELECT member.id, name, 3 - COUNT(`in`.id) as `available` FROM member " +
-                            "LEFT OUTER JOIN issue_note `in` ON member.id = `in`.member_id " +
-                            "LEFT OUTER JOIN issue_item ii ON `in`.id = ii.issue_id " +
-                            "LEFT OUTER JOIN `return` r ON ii.issue_id = r.issue_id and ii.isbn = r.isbn " +
-                            "WHERE r.date IS NULL AND member.id = ? GROUP BY member.id"
-            );
-            stm2.setString(1, issueNoteDTO.getMemberId());
-            ResultSet rst = stm2.executeQuery();
-            rst.next();
-            int available = rst.getInt("available");
+            int available = Math.max(3 - loans.count(), 0);
             if (available < issueNoteDTO.getBooks().size()){
                 throw new JsonbException("Issue limit is exceeded, only " + available + " books are available");
             }
@@ -128,16 +277,24 @@ public class IssueNoteServlet extends HttpServlet2 {
                 stmIssueItem.setInt(1, issueNoteId);
                 for (String isbn : issueNoteDTO.getBooks()) {
                     stmIssueItem.setString(2, isbn);
-                    if (stmIssueItem.executeUpdate() != 1) throw new SQLException("Failed to insert the issue item");
+                    stmIssueItem.addBatch();
+                }
+                /* Rewritten into one multi-row insert, so the individual counts may not be known */
+                for (int count : stmIssueItem.executeBatch()) {
+                    if (count == Statement.EXECUTE_FAILED) throw new SQLException("Failed to insert the issue item");
                 }
 
                 connection.commit();
+                placed = true;
+                loans.addAll(issueNoteDTO.getBooks());
 
                 issueNoteDTO.setDate(LocalDate.now());
                 issueNoteDTO.setId(issueNoteId);
                 response.setStatus(HttpServletResponse.SC_CREATED);
-                response.setContentType("application/json");
-                JsonbBuilder.create().toJson(issueNoteDTO, response.getWriter());
+                response.setContentType(JsonCodec.CONTENT_TYPE);
+                long serializing = ServerTiming.start();
+                JsonCodec.writeIssueNote(issueNoteDTO, response.getOutputStream());
+                ServerTiming.stop(ServerTiming.Phase.SERIALIZE, serializing);
 
             }catch (Throwable t){
                 connection.rollback();
@@ -149,6 +306,11 @@ public class IssueNoteServlet extends HttpServlet2 {
         } catch (SQLException e) {
             e.printStackTrace();
             response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Failed to place the issue note");
+        } finally {
+            if (loans != null) loans.unlock();
+            for (String isbn : reserved) {
+                if (placed) ledger.confirm(isbn); else ledger.cancel(isbn);
+            }
         }
     }
 }
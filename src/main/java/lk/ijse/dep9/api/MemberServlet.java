@@ -3,16 +3,27 @@ package lk.ijse.dep9.api;
 import jakarta.annotation.Resource;
 import jakarta.json.JsonBuilderFactory;
 import jakarta.json.bind.Jsonb;
-import jakarta.json.bind.JsonbBuilder;
 import jakarta.json.bind.JsonbConfig;
 import jakarta.json.bind.JsonbException;
 import jakarta.servlet.ServletException;
 import jakarta.servlet.annotation.WebServlet;
 import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
+import lk.ijse.dep9.api.listener.AppContextListener;
+import lk.ijse.dep9.api.util.CsvWriter;
+import lk.ijse.dep9.api.util.Cursor;
+import lk.ijse.dep9.api.util.Exports;
 import lk.ijse.dep9.api.util.HttpServlet2;
+import lk.ijse.dep9.api.util.JsonCodec;
+import lk.ijse.dep9.api.util.JsonOutput;
+import lk.ijse.dep9.cache.EntityCache;
+import lk.ijse.dep9.cache.SearchCountCache;
+import lk.ijse.dep9.cache.TableCounter;
+import lk.ijse.dep9.cache.VersionTracker;
 import lk.ijse.dep9.db.ConnectionPool;
+import lk.ijse.dep9.db.InList;
 import lk.ijse.dep9.dto.MemberDTO;
+import lk.ijse.dep9.index.MemberIndex;
 import lk.ijse.dep9.exception.ResponseStatusException;
 import org.apache.commons.dbcp2.BasicDataSource;
 
@@ -22,16 +33,30 @@ import javax.sql.DataSource;
 import java.io.IOException;
 import java.sql.*;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.Semaphore;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
-@WebServlet(name = "MemberServlet", value = "/members/*", loadOnStartup = 0)
+@WebServlet(name = "MemberServlet", value = "/members/*", loadOnStartup = 0, asyncSupported = true)
 public class MemberServlet extends HttpServlet2 {
 
+    private static final int FLUSH_INTERVAL = 256;
+    private static final int HYDRATION_BATCH_SIZE = 500;
+
     @Resource(lookup = "java:comp/env/jdbc/dep9-lms")
     private DataSource pool;
 
+    private TableCounter memberCounter;
+    private SearchCountCache searchCounts;
+    private MemberIndex memberIndex;
+    private EntityCache<String, MemberDTO> memberCache;
+    private VersionTracker versions;
+    private Semaphore exportPermits;
+
 //    @Override
 //    public void init() throws ServletException {
 //        try {
@@ -42,55 +67,116 @@ public class MemberServlet extends HttpServlet2 {
 //        }
 //    }
 
+    @Override
+    @SuppressWarnings("unchecked")
+    public void init() throws ServletException {
+        pool = connections(pool);
+        memberCounter = (TableCounter) getServletContext().getAttribute(AppContextListener.MEMBER_COUNTER);
+        searchCounts = (SearchCountCache) getServletContext().getAttribute(AppContextListener.MEMBER_SEARCH_COUNTS);
+        memberIndex = (MemberIndex) getServletContext().getAttribute(AppContextListener.MEMBER_INDEX);
+        memberCache = (EntityCache<String, MemberDTO>) getServletContext().getAttribute(AppContextListener.MEMBER_CACHE);
+        versions = (VersionTracker) getServletContext().getAttribute(AppContextListener.MEMBER_VERSIONS);
+        exportPermits = (Semaphore) getServletContext().getAttribute(AppContextListener.EXPORT_PERMITS);
+    }
+
+    /* The export and the full listing, which are streamed */
+    @Override
+    protected boolean isLongRunning(HttpServletRequest request) {
+        String path = request.getPathInfo();
+        if (!request.getMethod().equals("GET")) return false;
+        if (path == null || path.equals("/")) {
+            return request.getParameter("q") == null && request.getParameter("size") == null;
+        }
+        return path.matches("/export/?");
+    }
+
     @Override
     protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+        get(request, response, false);
+    }
+
+    @Override
+    protected boolean answerInline(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+        return request.getMethod().equals("GET") && get(request, response, true);
+    }
+
+    /* Inline, only what the ETags and the cache can answer is; the index only yields ids, so a search still needs
+       the database. For the rest it returns false before writing anything, so the request can go to the executor */
+    private boolean get(HttpServletRequest request, HttpServletResponse response, boolean inline) throws IOException {
         if (request.getPathInfo() == null || request.getPathInfo().equals("/")) {
+            if (notModified(versions.tableTag(), true, request, response)) return true;
 
             String query = request.getParameter("q");
             String size = request.getParameter("size");
             String page = request.getParameter("page");
-
-            if (query != null && size != null && page != null) {
+            String after = request.getParameter("after");
+
+            if (size != null && after != null) {
+                String lastId;
+                try {
+                    lastId = Cursor.decode(after);
+                } catch (IllegalArgumentException e) {
+                    throw new ResponseStatusException(400, "Invalid cursor", e);
+                }
+                if (!size.matches("[1-9]\\d*")) {
+                    throw new ResponseStatusException(400, "Invalid size");
+                } else {
+                    if (inline) return false;
+                    loadMembersAfter(query, lastId, Integer.parseInt(size), response);
+                }
+            } else if (query != null && size != null && page != null) {
                 if (!size.matches("\\d+") || !page.matches("\\d+")) {
                     throw new ResponseStatusException(400, "Invalid page or size");
                 } else {
+                    if (inline) return false;
                     searchPaginatedMembers(query, Integer.parseInt(size), Integer.parseInt(page), response);
                 }
             } else if (query != null) {
+                if (inline) return false;
                 searchMembers(query, response);
             } else if (size != null && page != null) {
                 if (!size.matches("\\d+") || !page.matches("\\d+")) {
                     throw new ResponseStatusException(400, "Invalid page or size");
                 } else {
+                    if (inline) return false;
                     loadAllPaginatedMembers(Integer.parseInt(size), Integer.parseInt(page), response);
                 }
             } else {
+                if (inline) return false;
                 loadAllMembers(response);
             }
+        } else if (request.getPathInfo().matches("/export/?")) {
+            if (inline) return false;
+            exportMembers(request, response);
         } else {
             Matcher matcher = Pattern.compile("^/([A-Fa-f0-9]{8}(-[A-Fa-f0-9]{4}){3}-[A-Fa-f0-9]{12})/?$")
                     .matcher(request.getPathInfo());
             if (matcher.matches()) {
-                getMemberDetails(matcher.group(1), response);
+                String etag = versions.rowTag(matcher.group(1).toLowerCase());
+                if (notModified(etag, false, request, response)) return true;
+                if (inline) {
+                    MemberDTO member = memberCache.getIfPresent(matcher.group(1).toLowerCase());
+                    if (member == null) return false;
+                    if (notModified(etag, true, request, response)) return true;
+                    response.setContentType(JsonCodec.CONTENT_TYPE);
+                    JsonCodec.writeMember(member, response.getOutputStream());
+                    return true;
+                }
+                getMemberDetails(matcher.group(1), etag, request, response);
             } else {
                 throw new ResponseStatusException(501);
             }
         }
+        return true;
     }
 
-    private void getMemberDetails(String memberId, HttpServletResponse response) throws IOException {
-        try (Connection connection = pool.getConnection()) {
-            PreparedStatement stm = connection.prepareStatement("SELECT * FROM member WHERE id=?");
-            stm.setString(1, memberId);
-            ResultSet rst = stm.executeQuery();
-            if (rst.next()) {
-                String id = rst.getString("id");
-                String name = rst.getString("name");
-                String address = rst.getString("address");
-                String contact = rst.getString("contact");
-                MemberDTO dto = new MemberDTO(id, name, address, contact);
-                response.setContentType("application/json");
-                JsonbBuilder.create().toJson(dto, response.getWriter());
+    private void getMemberDetails(String memberId, String etag, HttpServletRequest request, HttpServletResponse response) throws IOException {
+        try {
+            MemberDTO dto = memberCache.get(memberId.toLowerCase(), this::findMember);
+            if (dto != null) {
+                if (notModified(etag, true, request, response)) return;
+                response.setContentType(JsonCodec.CONTENT_TYPE);
+                JsonCodec.writeMember(dto, response.getOutputStream());
             } else {
                 throw new ResponseStatusException(404, "Invalid member id");
             }
@@ -99,30 +185,109 @@ public class MemberServlet extends HttpServlet2 {
         }
     }
 
-    private void loadAllMembers(HttpServletResponse response) throws IOException {
+    private MemberDTO findMember(String memberId) throws SQLException {
         try (Connection connection = pool.getConnection()) {
-            Statement stm = connection.createStatement();
+            PreparedStatement stm = connection.prepareStatement("SELECT * FROM member WHERE id=?");
+            stm.setString(1, memberId);
+            ResultSet rst = stm.executeQuery();
+            if (!rst.next()) return null;
+            String id = rst.getString("id");
+            String name = rst.getString("name");
+            String address = rst.getString("address");
+            String contact = rst.getString("contact");
+            return new MemberDTO(id, name, address, contact);
+        }
+    }
+
+    private void loadAllMembers(HttpServletResponse response) throws IOException {
+        /* Stream rows straight from the server instead of materializing the whole table. The statement has to be
+           closed even if the client goes away, a half-read stream leaves the connection unusable */
+        try (Connection connection = pool.getConnection();
+             Statement stm = connection.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+            stm.setFetchSize(Integer.MIN_VALUE);
             String sql = "SELECT * FROM member";
             ResultSet rst = stm.executeQuery(sql);
-            ArrayList<MemberDTO> members = new ArrayList<>();
 
+            response.setContentType(JsonCodec.CONTENT_TYPE);
+            JsonOutput json = new JsonOutput(response.getOutputStream());
+            json.write('[');
+            int rows = 0;
             while (rst.next()) {
-                String id = rst.getString("id");
-                String name = rst.getString("name");
-                String address = rst.getString("address");
-                String contact = rst.getString("contact");
-                MemberDTO dto = new MemberDTO(id, name, address, contact);
-                members.add(dto);
+                if (rows > 0) json.write(',');
+                JsonCodec.writeMember(json, rst.getString("id"), rst.getString("name"),
+                        rst.getString("address"), rst.getString("contact"));
+                if (++rows % FLUSH_INTERVAL == 0) json.flush();
             }
+            json.write(']');
+            json.close();
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /* Members in id order, optionally starting after a given id so that an interrupted export can resume */
+    private void exportMembers(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        String after = request.getParameter("after");
+        if (after != null && !after.matches("[A-Fa-f0-9]{8}(-[A-Fa-f0-9]{4}){3}-[A-Fa-f0-9]{12}")) {
+            throw new ResponseStatusException(400, "Invalid member id");
+        }
+        boolean csv = Exports.isCsv(request);
 
-            response.setContentType("application/json");
-            JsonbBuilder.create().toJson(members, response.getWriter());
+        if (!exportPermits.tryAcquire()) {
+            response.setHeader("Retry-After", "30");
+            throw new ResponseStatusException(503, "Too many exports are running, try again later");
+        }
+        try (Connection connection = pool.getConnection()) {
+            response.setContentType(Exports.contentType(csv));
+            String sql = "SELECT id, name, address, contact FROM member" +
+                    (after == null ? "" : " WHERE id > ?") + " ORDER BY id";
+            Exports.stream(connection, sql, stm -> {
+                if (after != null) stm.setString(1, after);
+            }, rst -> {
+                int rows = 0;
+                if (csv) {
+                    try (CsvWriter writer = new CsvWriter(response.getOutputStream())) {
+                        writer.writeRecord("id", "name", "address", "contact");
+                        while (rst.next()) {
+                            writer.writeRecord(rst.getString("id"), rst.getString("name"),
+                                    rst.getString("address"), rst.getString("contact"));
+                            if (++rows % Exports.FLUSH_INTERVAL == 0) writer.flush();
+                        }
+                    }
+                } else {
+                    try (JsonOutput json = new JsonOutput(response.getOutputStream())) {
+                        while (rst.next()) {
+                            JsonCodec.writeMember(json, rst.getString("id"), rst.getString("name"),
+                                    rst.getString("address"), rst.getString("contact"));
+                            json.write('\n');
+                            if (++rows % Exports.FLUSH_INTERVAL == 0) json.flush();
+                        }
+                    }
+                }
+            });
         } catch (SQLException e) {
             throw new RuntimeException(e);
+        } finally {
+            exportPermits.release();
         }
     }
 
     private void searchMembers(String query, HttpServletResponse response) throws IOException {
+        if (memberIndex.isReady()) {
+            List<String> ids = memberIndex.search(query);
+            try (Connection connection = pool.getConnection()) {
+                ArrayList<MemberDTO> members = new ArrayList<>();
+                for (int i = 0; i < ids.size(); i += HYDRATION_BATCH_SIZE) {
+                    members.addAll(findMembers(connection, ids.subList(i, Math.min(i + HYDRATION_BATCH_SIZE, ids.size()))));
+                }
+                response.setContentType(JsonCodec.CONTENT_TYPE);
+                JsonCodec.writeMembers(members, response.getOutputStream());
+            } catch (SQLException e) {
+                throw new RuntimeException(e);
+            }
+            return;
+        }
+
         try (Connection connection = pool.getConnection()) {
             PreparedStatement stm = connection.
                     prepareStatement("SELECT * FROM member WHERE id LIKE ? OR name LIKE ? OR address LIKE ? OR contact LIKE ?");
@@ -143,8 +308,8 @@ public class MemberServlet extends HttpServlet2 {
                 members.add(dto);
             }
 
-            response.setContentType("application/json");
-            JsonbBuilder.create().toJson(members, response.getWriter());
+            response.setContentType(JsonCodec.CONTENT_TYPE);
+            JsonCodec.writeMembers(members, response.getOutputStream());
 
         } catch (SQLException e) {
             throw new RuntimeException(e);
@@ -153,15 +318,10 @@ public class MemberServlet extends HttpServlet2 {
 
     private void loadAllPaginatedMembers(int size, int page, HttpServletResponse response) throws IOException {
         try (Connection connection = pool.getConnection()) {
-            Statement stmCount = connection.createStatement();
             PreparedStatement stm = connection.prepareStatement("SELECT * FROM member LIMIT ? OFFSET ?");
-            String sql = "SELECT COUNT(id) FROM member";
-
-            ResultSet rst = stmCount.executeQuery(sql);
-            rst.next();
 
-            int totalMembers = rst.getInt(1);
-            response.addIntHeader("X-Total-Count", totalMembers);
+            long totalMembers = memberCounter.get(connection);
+            response.addHeader("X-Total-Count", String.valueOf(totalMembers));
 
             stm.setInt(1, size);
             stm.setInt(2, (page - 1) * size);
@@ -178,28 +338,47 @@ public class MemberServlet extends HttpServlet2 {
                 members.add(dto);
             }
 
-            response.setContentType("application/json");
-            JsonbBuilder.create().toJson(members, response.getWriter());
+            response.setContentType(JsonCodec.CONTENT_TYPE);
+            JsonCodec.writeMembers(members, response.getOutputStream());
         } catch (SQLException e) {
             throw new RuntimeException(e);
         }
     }
 
     private void searchPaginatedMembers(String query, int size, int page, HttpServletResponse response) throws IOException {
+        if (memberIndex.isReady()) {
+            List<String> ids = memberIndex.search(query);
+            response.addIntHeader("X-Total-Count", ids.size());
+            int from = (int) Math.min((long) (page - 1) * size, ids.size());
+            int to = (int) Math.min((long) from + size, ids.size());
+            try (Connection connection = pool.getConnection()) {
+                List<MemberDTO> members = from < 0 ? List.of() : findMembers(connection, ids.subList(from, to));
+                response.setContentType(JsonCodec.CONTENT_TYPE);
+                JsonCodec.writeMembers(members, response.getOutputStream());
+            } catch (SQLException e) {
+                throw new RuntimeException(e);
+            }
+            return;
+        }
+
         try (Connection connection = pool.getConnection()) {
-            PreparedStatement stmCount = connection.prepareStatement("SELECT COUNT(id) FROM member WHERE id LIKE ? OR name LIKE ? OR address LIKE ? OR contact LIKE ?");
             PreparedStatement stm = connection.prepareStatement("SELECT * FROM member WHERE id LIKE ? OR name LIKE ? OR address LIKE ? OR contact LIKE ? LIMIT ? OFFSET ?");
 
+            String searchKey = query;
+            Long totalMembers = searchCounts.get(query);
             query = "%" + query + "%";
-            stmCount.setString(1, query);
-            stmCount.setString(2, query);
-            stmCount.setString(3, query);
-            stmCount.setString(4, query);
-            ResultSet rst = stmCount.executeQuery();
-            rst.next();
-
-            int totalMembers = rst.getInt(1);
-            response.addIntHeader("X-Total-Count", totalMembers);
+            if (totalMembers == null) {
+                PreparedStatement stmCount = connection.prepareStatement("SELECT COUNT(id) FROM member WHERE id LIKE ? OR name LIKE ? OR address LIKE ? OR contact LIKE ?");
+                stmCount.setString(1, query);
+                stmCount.setString(2, query);
+                stmCount.setString(3, query);
+                stmCount.setString(4, query);
+                ResultSet rst = stmCount.executeQuery();
+                rst.next();
+                totalMembers = rst.getLong(1);
+                searchCounts.put(searchKey, totalMembers);
+            }
+            response.addHeader("X-Total-Count", String.valueOf(totalMembers));
 
             stm.setString(1, query);
             stm.setString(2, query);
@@ -221,8 +400,81 @@ public class MemberServlet extends HttpServlet2 {
                 members.add(dto);
             }
 
-            response.setContentType("application/json");
-            JsonbBuilder.create().toJson(members, response.getWriter());
+            response.setContentType(JsonCodec.CONTENT_TYPE);
+            JsonCodec.writeMembers(members, response.getOutputStream());
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /* Fetches the given members with a single keyed query, keeping the order of the ids */
+    private List<MemberDTO> findMembers(Connection connection, List<String> ids) throws SQLException {
+        if (ids.isEmpty()) return new ArrayList<>();
+
+        int slots = InList.slots(ids.size());
+        PreparedStatement stm = connection.prepareStatement("SELECT * FROM member WHERE id IN (" +
+                InList.placeholders(ids.size(), "?") + ")");
+        for (int i = 0; i < slots; i++) {
+            stm.setString(i + 1, ids.get(Math.min(i, ids.size() - 1)));
+        }
+        ResultSet rst = stm.executeQuery();
+
+        Map<String, MemberDTO> members = new HashMap<>();
+        while (rst.next()) {
+            String id = rst.getString("id");
+            String name = rst.getString("name");
+            String address = rst.getString("address");
+            String contact = rst.getString("contact");
+            members.put(id.toLowerCase(), new MemberDTO(id, name, address, contact));
+        }
+
+        List<MemberDTO> result = new ArrayList<>(ids.size());
+        for (String id : ids) {
+            MemberDTO member = members.get(id.toLowerCase());
+            if (member != null) result.add(member);
+        }
+        return result;
+    }
+
+    /* Keyset pagination: seeks past the last id of the previous page instead of skipping rows with OFFSET */
+    private void loadMembersAfter(String query, String lastId, int size, HttpServletResponse response) throws IOException {
+        try (Connection connection = pool.getConnection()) {
+            PreparedStatement stm;
+            if (query == null) {
+                stm = connection.prepareStatement("SELECT * FROM member WHERE id > ? ORDER BY id LIMIT ?");
+                stm.setString(1, lastId);
+                stm.setInt(2, size + 1);
+            } else {
+                stm = connection.prepareStatement("SELECT * FROM member WHERE (id LIKE ? OR name LIKE ? OR address LIKE ? OR contact LIKE ?) " +
+                        "AND id > ? ORDER BY id LIMIT ?");
+                query = "%" + query + "%";
+                stm.setString(1, query);
+                stm.setString(2, query);
+                stm.setString(3, query);
+                stm.setString(4, query);
+                stm.setString(5, lastId);
+                stm.setInt(6, size + 1);
+            }
+            ResultSet rst = stm.executeQuery();
+
+            ArrayList<MemberDTO> members = new ArrayList<>();
+            boolean hasMore = false;
+            while (rst.next()) {
+                if (members.size() == size) {
+                    hasMore = true;
+                    break;
+                }
+                String id = rst.getString("id");
+                String name = rst.getString("name");
+                String address = rst.getString("address");
+                String contact = rst.getString("contact");
+                members.add(new MemberDTO(id, name, address, contact));
+            }
+
+            if (query == null) response.addHeader("X-Total-Count", String.valueOf(memberCounter.get(connection)));
+            if (hasMore) response.setHeader("X-Next-Cursor", Cursor.encode(members.get(members.size() - 1).getId()));
+            response.setContentType(JsonCodec.CONTENT_TYPE);
+            JsonCodec.writeMembers(members, response.getOutputStream());
         } catch (SQLException e) {
             throw new RuntimeException(e);
         }
@@ -236,8 +488,7 @@ public class MemberServlet extends HttpServlet2 {
                     throw new JsonbException("Invalid JSON");
                 }
 
-                MemberDTO member = JsonbBuilder.create().
-                        fromJson(request.getReader(), MemberDTO.class);
+                MemberDTO member = JsonCodec.readMember(request.getInputStream());
 
                 if (member.getName() == null ||
                         !member.getName().matches("[A-Za-z ]+")) {
@@ -261,9 +512,13 @@ public class MemberServlet extends HttpServlet2 {
 
                     int affectedRows = stm.executeUpdate();
                     if (affectedRows == 1) {
+                        memberCounter.increment();
+                        searchCounts.invalidateAll();
+                        memberIndex.put(member);
+                        versions.bump(member.getId());
                         response.setStatus(HttpServletResponse.SC_CREATED);
-                        response.setContentType("application/json");
-                        JsonbBuilder.create().toJson(member, response.getWriter());
+                        response.setContentType(JsonCodec.CONTENT_TYPE);
+                        JsonCodec.writeMember(member, response.getOutputStream());
                     } else {
                         throw new SQLException("Something went wrong");
                     }
@@ -302,6 +557,11 @@ public class MemberServlet extends HttpServlet2 {
             if (affectedRows == 0) {
                 throw new ResponseStatusException(404, "Invalid member id");
             } else {
+                memberCounter.decrement();
+                searchCounts.invalidateAll();
+                memberIndex.remove(memberId);
+                memberCache.invalidate(memberId.toLowerCase());
+                versions.bump(memberId.toLowerCase());
                 response.setStatus(HttpServletResponse.SC_NO_CONTENT);
             }
         } catch (SQLException e) {
@@ -330,7 +590,7 @@ public class MemberServlet extends HttpServlet2 {
             if (request.getContentType() == null || !request.getContentType().startsWith("application/json")) {
                 throw new JsonbException("Invalid JSON");
             }
-            MemberDTO member = JsonbBuilder.create().fromJson(request.getReader(), MemberDTO.class);
+            MemberDTO member = JsonCodec.readMember(request.getInputStream());
 
             if (member.getId() == null || !memberId.equalsIgnoreCase(member.getId())) {
                 throw new JsonbException("Id is empty or invalid");
@@ -354,6 +614,10 @@ public class MemberServlet extends HttpServlet2 {
                 stm.setString(4, member.getId());
 
                 if (stm.executeUpdate() == 1) {
+                    searchCounts.invalidateAll();
+                    memberIndex.put(member);
+                    memberCache.invalidate(memberId.toLowerCase());
+                    versions.bump(memberId.toLowerCase());
                     response.setStatus(HttpServletResponse.SC_NO_CONTENT);
                 } else {
                     throw new ResponseStatusException(404, "Member does not exist");
@@ -0,0 +1,31 @@
+package lk.ijse.dep9.api;
+
+import jakarta.servlet.ServletException;
+import jakarta.servlet.annotation.WebServlet;
+import jakarta.servlet.http.HttpServlet;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import lk.ijse.dep9.api.listener.AppContextListener;
+import lk.ijse.dep9.metrics.MetricsRegistry;
+import lk.ijse.dep9.metrics.PrometheusWriter;
+
+import java.io.IOException;
+
+/* A plain servlet, so that a scrape is never queued behind the JDBC work it is supposed to observe */
+@WebServlet(name = "MetricsServlet", value = "/metrics", loadOnStartup = 0)
+public class MetricsServlet extends HttpServlet {
+
+    private MetricsRegistry metrics;
+
+    @Override
+    public void init() throws ServletException {
+        metrics = (MetricsRegistry) getServletContext().getAttribute(AppContextListener.METRICS_REGISTRY);
+    }
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+        response.setContentType(PrometheusWriter.CONTENT_TYPE);
+        response.setHeader("Cache-Control", "no-store");
+        metrics.write(new PrometheusWriter(response.getWriter()));
+    }
+}
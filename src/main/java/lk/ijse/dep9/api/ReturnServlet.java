@@ -1,33 +1,75 @@
 package lk.ijse.dep9.api;
 
 import jakarta.annotation.Resource;
-import jakarta.json.bind.JsonbBuilder;
 import jakarta.json.bind.JsonbException;
 import jakarta.servlet.ServletException;
 import jakarta.servlet.annotation.WebServlet;
 import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
+import lk.ijse.dep9.api.listener.AppContextListener;
 import lk.ijse.dep9.api.util.HttpServlet2;
+import lk.ijse.dep9.api.util.JsonCodec;
+import lk.ijse.dep9.cache.AvailabilityLedger;
+import lk.ijse.dep9.cache.LoanRegistry;
+import lk.ijse.dep9.db.InList;
 import lk.ijse.dep9.dto.ReturnDTO;
 import lk.ijse.dep9.dto.ReturnItemDTO;
+import lk.ijse.dep9.metrics.MetricsRegistry;
+import lk.ijse.dep9.metrics.ServerTiming;
 
 import javax.sql.DataSource;
 import java.io.IOException;
-import java.sql.Connection;
-import java.sql.Date;
-import java.sql.PreparedStatement;
-import java.sql.SQLException;
+import java.sql.*;
 import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
-import java.util.stream.Collectors;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
-@WebServlet(name = "ReturnServlet", value = "/returns/*")
+/* Loaded on startup so that its counters are scraped from the start */
+@WebServlet(name = "ReturnServlet", value = "/returns/*", asyncSupported = true, loadOnStartup = 1)
 public class ReturnServlet extends HttpServlet2 {
 
+    private static final int VALIDATION_CHUNK_SIZE = 500;
+    private static final int LARGE_RETURN_SIZE = 50;
+    private static final Logger logger = Logger.getLogger(ReturnServlet.class.getName());
+
+    /* Totals since startup */
+    private final LongAdder returnedItems = new LongAdder();
+    private final LongAdder validationTime = new LongAdder();
+    private final LongAdder transactionTime = new LongAdder();
+
     @Resource(lookup = "java:comp/env/jdbc/dep9-lms")
     private DataSource pool;
 
+    private AvailabilityLedger ledger;
+    private LoanRegistry loanRegistry;
+
+    @Override
+    public void init() throws ServletException {
+        pool = connections(pool);
+        ledger = (AvailabilityLedger) getServletContext().getAttribute(AppContextListener.AVAILABILITY_LEDGER);
+        loanRegistry = (LoanRegistry) getServletContext().getAttribute(AppContextListener.LOAN_REGISTRY);
+
+        MetricsRegistry metrics = (MetricsRegistry) getServletContext().getAttribute(AppContextListener.METRICS_REGISTRY);
+        if (metrics != null) {
+            metrics.register(writer -> {
+                writer.header("lms_returned_items_total", "counter", "Book copies returned");
+                writer.sample("lms_returned_items_total", returnedItems.sum());
+                writer.header("lms_return_validation_seconds_total", "counter", "Time spent validating returns");
+                writer.sample("lms_return_validation_seconds_total", validationTime.sum() / 1e9);
+                writer.header("lms_return_transaction_seconds_total", "counter", "Time spent recording returns");
+                writer.sample("lms_return_transaction_seconds_total", transactionTime.sum() / 1e9);
+            });
+        }
+    }
+
     @Override
     protected void doPost(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
         if (request.getPathInfo() != null && !request.getPathInfo().equals("/")) {
@@ -41,7 +83,9 @@ public class ReturnServlet extends HttpServlet2 {
                 throw new JsonbException("Invalid JSON");
             }
 
-            ReturnDTO returnDTO = JsonbBuilder.create().fromJson(request.getReader(), ReturnDTO.class);
+            long parsing = ServerTiming.start();
+            ReturnDTO returnDTO = JsonCodec.readReturn(request.getInputStream());
+            ServerTiming.stop(ServerTiming.Phase.PARSE, parsing);
             addReturnItems(returnDTO, response);
         } catch (JsonbException e) {
             response.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
@@ -51,6 +95,7 @@ public class ReturnServlet extends HttpServlet2 {
 
     private void addReturnItems(ReturnDTO returnDTO, HttpServletResponse response) throws IOException {
         /* Data Validation */
+        long validating = ServerTiming.start();
         if (returnDTO.getMemberId() == null ||
                 !returnDTO.getMemberId().matches("([A-Fa-f0-9]{8}(-[A-Fa-f0-9]{4}){3}-[A-Fa-f0-9]{12})")) {
             throw new JsonbException("The member is invalid or empty");
@@ -63,63 +108,88 @@ public class ReturnServlet extends HttpServlet2 {
                         !item.getIsbn().matches("([0-9][0-9\\\\-]*[0-9])"))) {
             throw new JsonbException("Some items are invalid");
         }
+        ServerTiming.stop(ServerTiming.Phase.VALIDATE, validating);
 
-        Set<ReturnItemDTO> returnItems = returnDTO.getReturnItems().stream().collect(Collectors.toSet());
+        Set<ReturnItemDTO> returnItems = new LinkedHashSet<>(returnDTO.getReturnItems());
 
         /* Business Validation */
         try (Connection connection = pool.getConnection()) {
+            long started = System.nanoTime();
+
+            /* Loan key -> whether it has been returned, for the loans of this member among the requested items */
+            Map<String, Boolean> loans = new HashMap<>();
+            List<ReturnItemDTO> items = new ArrayList<>(returnItems);
+            for (int from = 0; from < items.size(); from += VALIDATION_CHUNK_SIZE) {
+                List<ReturnItemDTO> chunk = items.subList(from, Math.min(from + VALIDATION_CHUNK_SIZE, items.size()));
+                PreparedStatement stm = connection.prepareStatement("SELECT ii.issue_id, ii.isbn, r.isbn AS returned " +
+                        "FROM issue_item ii " +
+                        "INNER JOIN issue_note `in` ON ii.issue_id = `in`.id " +
+                        "LEFT OUTER JOIN `return` r ON r.issue_id = ii.issue_id AND r.isbn = ii.isbn " +
+                        "WHERE `in`.member_id = ? AND (ii.issue_id, ii.isbn) IN (" +
+                        InList.placeholders(chunk.size(), "(?, ?)") + ")");
+                stm.setString(1, returnDTO.getMemberId());
+                int index = 2;
+                for (int i = 0; i < InList.slots(chunk.size()); i++) {
+                    ReturnItemDTO returnItem = chunk.get(Math.min(i, chunk.size() - 1));
+                    stm.setInt(index++, returnItem.getIssueNoteId());
+                    stm.setString(index++, returnItem.getIsbn());
+                }
+                ResultSet rst = stm.executeQuery();
+                while (rst.next()) {
+                    loans.put(rst.getInt("issue_id") + ":" + rst.getString("isbn"), rst.getString("returned") != null);
+                }
+            }
 
-            PreparedStatement stm = connection.prepareStatement("SELECT * FROM issue_item " +
-                    "INNER JOIN issue_note `in` on issue_item.issue_id = `in`.id " +
-                    "WHERE member_id = ? AND issue_id = ? and isbn =?");
-            stm.setString(1, returnDTO.getMemberId());
-
-            PreparedStatement stm2 = connection.
-                    prepareStatement("SELECT * FROM `return` WHERE isbn = ? AND issue_id = ?");
+            for (ReturnItemDTO returnItem : returnItems) {
+                Boolean returned = loans.get(returnItem.getIssueNoteId() + ":" + returnItem.getIsbn());
+                if (returned == null) {
+                    throw new JsonbException( String.format("Either one of these %s, %s, %s doesn't exist or this return item " +
+                                    "is not belonged to this member",
+                            returnDTO.getMemberId(),
+                            returnItem.getIssueNoteId(),
+                            returnItem.getIsbn()));
+                }
+                if (returned) {
+                    throw new JsonbException("This " + returnItem.getIsbn() + " have been already returned");
+                }
+            }
+            long validated = System.nanoTime();
 
-            PreparedStatement stm3 = connection.
+            /* Only the inserts run in the transaction, so it is held for a single round trip */
+            PreparedStatement stm = connection.
                     prepareStatement("INSERT INTO `return` (date, issue_id, isbn) VALUES (?, ?, ?)");
+            Date today = Date.valueOf(LocalDate.now());
+            for (ReturnItemDTO returnItem : returnItems) {
+                stm.setDate(1, today);
+                stm.setInt(2, returnItem.getIssueNoteId());
+                stm.setString(3, returnItem.getIsbn());
+                stm.addBatch();
+            }
 
             try {
                 connection.setAutoCommit(false);
-                for (ReturnItemDTO returnItem : returnItems) {
-                    stm.setInt(2, returnItem.getIssueNoteId());
-                    stm.setString(3, returnItem.getIsbn());
-
-                    stm2.setInt(1, returnItem.getIssueNoteId());
-                    stm2.setString(2, returnItem.getIsbn());
-
-                    if (!stm.executeQuery().next()) {
-                        throw new JsonbException( String.format("Either one of these %s, %s, %s doesn't exist or this return item " +
-                                        "is not belonged to this member",
-                                returnDTO.getMemberId(),
-                                returnItem.getIssueNoteId(),
-                                returnItem.getIsbn()));
-                    }
-
-                    if (stm2.executeQuery().next()) {
-                        throw new JsonbException("This " + returnItem.getIsbn() + " have been already returned");
-                    }
-
-                    stm3.setDate(1, Date.valueOf(LocalDate.now()));
-                    stm3.setInt(2, returnItem.getIssueNoteId());
-                    stm3.setString(3, returnItem.getIsbn());
-
-                    if (stm3.executeUpdate() != 1){
-                        throw new SQLException("Failed to insert a return item");
-                    }
+                for (int count : stm.executeBatch()) {
+                    if (count == Statement.EXECUTE_FAILED) throw new SQLException("Failed to insert a return item");
                 }
                 connection.commit();
+                for (ReturnItemDTO returnItem : returnItems) {
+                    ledger.returned(returnItem.getIsbn());
+                    loanRegistry.returned(returnDTO.getMemberId(), returnItem.getIsbn());
+                }
                 response.setStatus(HttpServletResponse.SC_CREATED);
             }
             catch (Throwable t){
                 connection.rollback();
-                if (t instanceof JsonbException) throw t;
-                t.printStackTrace();
-                response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Failed to return items");
+                if (t instanceof SQLException && ((SQLException) t).getSQLState() != null &&
+                        ((SQLException) t).getSQLState().startsWith("23")) {
+                    /* Another request returned some of these items after they were validated */
+                    throw new JsonbException("Some of these items have been already returned");
+                }
+                throw t;
             }finally {
                 connection.setAutoCommit(true);
             }
+            record(returnItems.size(), validated - started, System.nanoTime() - validated);
 
         } catch (SQLException e) {
             e.printStackTrace();
@@ -127,4 +197,16 @@ public class ReturnServlet extends HttpServlet2 {
         }
     }
 
+    private void record(int items, long validationNanos, long transactionNanos) {
+        returnedItems.add(items);
+        validationTime.add(validationNanos);
+        transactionTime.add(transactionNanos);
+        Level level = items >= LARGE_RETURN_SIZE ? Level.INFO : Level.FINE;
+        if (logger.isLoggable(level)) {
+            logger.log(level, String.format("Returned %d items: validation %.3f ms, transaction %.3f ms, %.1f us per item",
+                    items, validationNanos / 1e6, transactionNanos / 1e6,
+                    (validationNanos + transactionNanos) / 1e3 / items));
+        }
+    }
+
 }
@@ -0,0 +1,464 @@
+package lk.ijse.dep9.api.filter;
+
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.WriteListener;
+import jakarta.servlet.http.HttpFilter;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import jakarta.servlet.http.HttpServletResponseWrapper;
+import lk.ijse.dep9.api.util.BufferPool;
+import lk.ijse.dep9.api.util.HttpServlet2;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses responses with gzip or deflate when the client accepts it and the body is large enough.
+ * Up to {@code threshold} bytes are held back to make that decision; after that the body is compressed as it is
+ * written, and every flush of the servlet becomes a sync flush so that streamed listings keep streaming.
+ */
+public class CompressionFilter extends HttpFilter {
+
+    private static final int MAX_POOLED_DEFLATERS = 64;
+    private static final byte[] GZIP_HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+
+    private int threshold;
+    private int level;
+    private Set<String> mimeTypes;
+
+    private final ConcurrentLinkedQueue<Deflater> gzipDeflaters = new ConcurrentLinkedQueue<>();
+    private final ConcurrentLinkedQueue<Deflater> zlibDeflaters = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pooledDeflaters = new AtomicInteger();
+
+    @Override
+    public void init() throws ServletException {
+        String threshold = getFilterConfig().getInitParameter("threshold");
+        String level = getFilterConfig().getInitParameter("level");
+        String mimeTypes = getFilterConfig().getInitParameter("mimeTypes");
+
+        /* The undecided part of the body has to fit in one pooled buffer */
+        this.threshold = Math.max(1, Math.min(BufferPool.BUFFER_SIZE,
+                threshold == null ? 1024 : Integer.parseInt(threshold.trim())));
+        this.level = level == null ? Deflater.DEFAULT_COMPRESSION : Integer.parseInt(level.trim());
+        this.mimeTypes = new HashSet<>(Arrays.asList((mimeTypes == null ?
+                "application/json, application/x-ndjson, text/csv, text/plain" : mimeTypes)
+                .toLowerCase(Locale.ROOT).split("\\s*,\\s*")));
+    }
+
+    @Override
+    public void destroy() {
+        Deflater deflater;
+        while ((deflater = gzipDeflaters.poll()) != null) deflater.end();
+        while ((deflater = zlibDeflaters.poll()) != null) deflater.end();
+    }
+
+    @Override
+    protected void doFilter(HttpServletRequest req, HttpServletResponse res, FilterChain chain) throws IOException, ServletException {
+        if (req.getMethod().equalsIgnoreCase("HEAD") || req.getMethod().equalsIgnoreCase("OPTIONS")) {
+            chain.doFilter(req, res);
+            return;
+        }
+
+        res.addHeader("Vary", "Accept-Encoding");
+        String encoding = negotiate(req.getHeader("Accept-Encoding"));
+        if (encoding == null) {
+            chain.doFilter(req, res);
+            return;
+        }
+
+        String ifNoneMatch = req.getHeader("If-None-Match");
+        CompressingResponse response = new CompressingResponse(res, encoding,
+                ifNoneMatch != null && ifNoneMatch.contains("-" + encoding + "\""));
+        boolean async = false;
+        try {
+            HttpServlet2.addFinisher(req, response);
+            chain.doFilter(req, response);
+            /* An async handler is still writing, HttpServlet2 closes the response once it is done */
+            async = req.isAsyncStarted();
+            if (!async) response.finish();
+        } finally {
+            if (!async) response.release();
+        }
+    }
+
+    /* gzip wins a tie, a q of zero rules an encoding out */
+    static String negotiate(String acceptEncoding) {
+        if (acceptEncoding == null) return null;
+        double gzip = -1, deflate = -1, any = -1;
+        for (String token : acceptEncoding.split(",")) {
+            String[] parts = token.split(";");
+            String coding = parts[0].trim().toLowerCase(Locale.ROOT);
+            double q = 1;
+            for (int i = 1; i < parts.length; i++) {
+                String parameter = parts[i].trim();
+                if (parameter.startsWith("q=") || parameter.startsWith("Q=")) {
+                    try {
+                        q = Double.parseDouble(parameter.substring(2));
+                    } catch (NumberFormatException e) {
+                        q = 0;
+                    }
+                }
+            }
+            if (coding.equals("gzip") || coding.equals("x-gzip")) gzip = Math.max(gzip, q);
+            else if (coding.equals("deflate")) deflate = q;
+            else if (coding.equals("*")) any = q;
+        }
+        if (gzip < 0) gzip = any;
+        if (deflate < 0) deflate = any;
+        if (gzip > 0 && gzip >= deflate) return "gzip";
+        if (deflate > 0) return "deflate";
+        return null;
+    }
+
+    private Deflater borrowDeflater(boolean gzip) {
+        Deflater deflater = (gzip ? gzipDeflaters : zlibDeflaters).poll();
+        if (deflater == null) return new Deflater(level, gzip);
+        pooledDeflaters.decrementAndGet();
+        return deflater;
+    }
+
+    private void returnDeflater(Deflater deflater, boolean gzip) {
+        deflater.reset();
+        if (pooledDeflaters.incrementAndGet() > MAX_POOLED_DEFLATERS) {
+            pooledDeflaters.decrementAndGet();
+            deflater.end();
+            return;
+        }
+        (gzip ? gzipDeflaters : zlibDeflaters).offer(deflater);
+    }
+
+    private class CompressingResponse extends HttpServletResponseWrapper implements Closeable {
+
+        private final String encoding;
+        private final boolean tagNotModified;
+        private CompressingStream stream;
+        private PrintWriter writer;
+        private long contentLength = -1;
+        private boolean bypassed;
+
+        CompressingResponse(HttpServletResponse response, String encoding, boolean tagNotModified) {
+            super(response);
+            this.encoding = encoding;
+            this.tagNotModified = tagNotModified;
+        }
+
+        @Override
+        public ServletOutputStream getOutputStream() throws IOException {
+            if (writer != null) throw new IllegalStateException("getWriter() has already been called");
+            return stream();
+        }
+
+        @Override
+        public PrintWriter getWriter() throws IOException {
+            if (writer != null) return writer;
+            if (stream != null) throw new IllegalStateException("getOutputStream() has already been called");
+            writer = new PrintWriter(new OutputStreamWriter(stream(), getCharacterEncoding()));
+            return writer;
+        }
+
+        private CompressingStream stream() {
+            if (stream == null) stream = new CompressingStream(this);
+            return stream;
+        }
+
+        /* The length of the body is unknown until it has been decided whether to compress it */
+        @Override
+        public void setContentLength(int len) {
+            setContentLengthLong(len);
+        }
+
+        @Override
+        public void setContentLengthLong(long len) {
+            if (stream != null && stream.started) {
+                if (!stream.compressing) super.setContentLengthLong(len);
+            } else {
+                contentLength = len;
+            }
+        }
+
+        @Override
+        public void setHeader(String name, String value) {
+            if (name.equalsIgnoreCase("Content-Length")) {
+                setContentLengthLong(value == null ? -1 : Long.parseLong(value.trim()));
+            } else {
+                super.setHeader(name, value);
+            }
+        }
+
+        @Override
+        public void addHeader(String name, String value) {
+            if (name.equalsIgnoreCase("Content-Length")) {
+                setHeader(name, value);
+            } else {
+                super.addHeader(name, value);
+            }
+        }
+
+        @Override
+        public void setIntHeader(String name, int value) {
+            if (name.equalsIgnoreCase("Content-Length")) {
+                setContentLengthLong(value);
+            } else {
+                super.setIntHeader(name, value);
+            }
+        }
+
+        @Override
+        public void addIntHeader(String name, int value) {
+            if (name.equalsIgnoreCase("Content-Length")) {
+                setContentLengthLong(value);
+            } else {
+                super.addIntHeader(name, value);
+            }
+        }
+
+        /* Held back bytes have not reached the client yet, so an error can still replace them */
+        @Override
+        public boolean isCommitted() {
+            return (stream != null && stream.started) || super.isCommitted();
+        }
+
+        @Override
+        public void resetBuffer() {
+            if (stream != null) {
+                if (stream.started) throw new IllegalStateException("Response has already been committed");
+                stream.count = 0;
+            }
+            super.resetBuffer();
+        }
+
+        @Override
+        public void reset() {
+            resetBuffer();
+            super.reset();
+            contentLength = -1;
+            super.addHeader("Vary", "Accept-Encoding");
+        }
+
+        @Override
+        public void flushBuffer() throws IOException {
+            if (writer != null) writer.flush();
+            if (stream != null) {
+                stream.flush();
+            } else {
+                super.flushBuffer();
+            }
+        }
+
+        @Override
+        public void sendError(int sc, String msg) throws IOException {
+            resetBuffer();
+            bypassed = true;
+            super.sendError(sc, msg);
+        }
+
+        @Override
+        public void sendError(int sc) throws IOException {
+            resetBuffer();
+            bypassed = true;
+            super.sendError(sc);
+        }
+
+        boolean shouldCompress() {
+            int status = getStatus();
+            if (status < 200 || status == SC_NO_CONTENT || status == SC_NOT_MODIFIED) return false;
+            if (getHeader("Content-Encoding") != null) return false;
+            if (contentLength >= 0 && contentLength < threshold) return false;
+            String contentType = getContentType();
+            if (contentType == null) return false;
+            int semicolon = contentType.indexOf(';');
+            if (semicolon >= 0) contentType = contentType.substring(0, semicolon);
+            return mimeTypes.contains(contentType.trim().toLowerCase(Locale.ROOT));
+        }
+
+        /* A compressed body is a different representation, so it carries a different strong tag */
+        void tagETag() {
+            String etag = getHeader("ETag");
+            if (etag != null && etag.endsWith("\"") && !etag.endsWith("-" + encoding + "\"")) {
+                super.setHeader("ETag", etag.substring(0, etag.length() - 1) + "-" + encoding + "\"");
+            }
+        }
+
+        void finish() throws IOException {
+            if (bypassed) return;
+            if (writer != null) writer.flush();
+            if (stream != null) {
+                stream.finish();
+            } else if (tagNotModified && getStatus() == SC_NOT_MODIFIED) {
+                tagETag();
+            }
+        }
+
+        void release() {
+            if (stream != null) stream.release();
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                finish();
+            } finally {
+                release();
+            }
+        }
+    }
+
+    private class CompressingStream extends ServletOutputStream {
+
+        private final CompressingResponse response;
+        private final boolean gzip;
+        private final byte[] single = new byte[1];
+        private byte[] pending = BufferPool.acquire();
+        private int count;
+        private boolean started;
+        private boolean compressing;
+        private boolean finished;
+        private ServletOutputStream out;
+        private Deflater deflater;
+        private byte[] deflated;
+        private CRC32 crc;
+
+        CompressingStream(CompressingResponse response) {
+            this.response = response;
+            this.gzip = response.encoding.equals("gzip");
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            single[0] = (byte) b;
+            write(single, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (finished) throw new IOException("Stream has already been closed");
+            if (!started) {
+                if (count + len < threshold) {
+                    System.arraycopy(b, off, pending, count, len);
+                    count += len;
+                    return;
+                }
+                start(true);
+            }
+            if (compressing) {
+                deflate(b, off, len);
+            } else {
+                out.write(b, off, len);
+            }
+        }
+
+        private void start(boolean large) throws IOException {
+            started = true;
+            out = response.getResponse().getOutputStream();
+            compressing = large && response.shouldCompress();
+            if (compressing) {
+                response.setHeader("Content-Encoding", response.encoding);
+                response.tagETag();
+                deflater = borrowDeflater(gzip);
+                deflated = BufferPool.acquire();
+                if (gzip) {
+                    crc = new CRC32();
+                    out.write(GZIP_HEADER);
+                }
+                deflate(pending, 0, count);
+            } else {
+                if (response.contentLength >= 0) response.getResponse().setContentLengthLong(response.contentLength);
+                out.write(pending, 0, count);
+            }
+            BufferPool.release(pending);
+            pending = null;
+            count = 0;
+        }
+
+        private void deflate(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return;
+            if (gzip) crc.update(b, off, len);
+            deflater.setInput(b, off, len);
+            while (!deflater.needsInput()) drain(Deflater.NO_FLUSH);
+        }
+
+        private int drain(int flush) throws IOException {
+            int length = deflater.deflate(deflated, 0, deflated.length, flush);
+            if (length > 0) out.write(deflated, 0, length);
+            return length;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (finished) return;
+            if (!started) {
+                /* Only streamed bodies are flushed by the servlets, and those are worth compressing at any size */
+                if (count == 0) return;
+                start(true);
+            }
+            if (compressing) {
+                /* A full output buffer means the deflater may still hold flushed data */
+                while (drain(Deflater.SYNC_FLUSH) == deflated.length) ;
+            }
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            finish();
+        }
+
+        void finish() throws IOException {
+            if (finished) return;
+            if (!started) start(count > 0 && count >= threshold);
+            finished = true;
+            if (compressing) {
+                deflater.finish();
+                while (!deflater.finished()) drain(Deflater.NO_FLUSH);
+                if (gzip) {
+                    writeIntLE((int) crc.getValue());
+                    writeIntLE((int) deflater.getBytesRead());
+                }
+            }
+        }
+
+        private void writeIntLE(int value) throws IOException {
+            out.write(value & 0xff);
+            out.write((value >> 8) & 0xff);
+            out.write((value >> 16) & 0xff);
+            out.write((value >>> 24) & 0xff);
+        }
+
+        void release() {
+            if (deflater != null) {
+                returnDeflater(deflater, gzip);
+                deflater = null;
+            }
+            BufferPool.release(deflated);
+            BufferPool.release(pending);
+            deflated = null;
+            pending = null;
+        }
+
+        @Override
+        public boolean isReady() {
+            return out == null || out.isReady();
+        }
+
+        @Override
+        public void setWriteListener(WriteListener writeListener) {
+            try {
+                response.getResponse().getOutputStream().setWriteListener(writeListener);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,197 @@
+package lk.ijse.dep9.api.filter;
+
+import jakarta.servlet.AsyncEvent;
+import jakarta.servlet.AsyncListener;
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.http.HttpFilter;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import lk.ijse.dep9.api.listener.AppContextListener;
+import lk.ijse.dep9.api.util.HttpServlet2;
+import lk.ijse.dep9.metrics.MetricsRegistry;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Sheds load before it queues up on the connection pool. The number of requests in flight is capped by a limit
+ * that follows the measured latency: while it stays close to its long term average the limit grows, when the
+ * database slows down it shrinks. Catalog reads may only use part of the limit, so that issuing and returning
+ * books still get through when the API is saturated. Everything above the limit gets an immediate 503.
+ */
+public class ConcurrencyLimitFilter extends HttpFilter {
+
+    /* How much slower than the long term average the latency may get before the limit starts to shrink */
+    private static final double TOLERANCE = 2.0;
+    private static final double SMOOTHING = 0.2;
+    private static final double SHORT_WINDOW = 0.1;
+    private static final double LONG_WINDOW = 1.0 / 500;
+    private static final double BACKOFF = 0.9;
+
+    private int minLimit;
+    private int maxLimit;
+    private double readShare;
+    private String retryAfter;
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final LongAdder rejected = new LongAdder();
+
+    /* Written under the lock of this filter, read without it */
+    private volatile double limit;
+    private double shortRtt;
+    private double longRtt;
+
+    @Override
+    public void init() throws ServletException {
+        minLimit = Math.max(1, parameter("minLimit", 4));
+        maxLimit = Math.max(minLimit, parameter("maxLimit", 200));
+        limit = Math.min(maxLimit, Math.max(minLimit, parameter("initialLimit", 20)));
+        readShare = Math.min(1, Math.max(0.1, parameter("readShare", 75) / 100.0));
+        retryAfter = String.valueOf(parameter("retryAfter", 1));
+
+        MetricsRegistry metrics = (MetricsRegistry) getServletContext().getAttribute(AppContextListener.METRICS_REGISTRY);
+        if (metrics != null) {
+            metrics.register(writer -> {
+                writer.header("lms_concurrency_limit", "gauge", "Requests allowed in flight at the moment");
+                writer.sample("lms_concurrency_limit", getLimit());
+                writer.header("lms_concurrency_in_flight", "gauge", "Requests in flight");
+                writer.sample("lms_concurrency_in_flight", getInFlight());
+                writer.header("lms_concurrency_rejected_total", "counter", "Requests shed with a 503");
+                writer.sample("lms_concurrency_rejected_total", getRejected());
+            });
+        }
+    }
+
+    private int parameter(String name, int defaultValue) {
+        String value = getFilterConfig().getInitParameter(name);
+        return value == null ? defaultValue : Integer.parseInt(value.trim());
+    }
+
+    @Override
+    protected void doFilter(HttpServletRequest req, HttpServletResponse res, FilterChain chain) throws IOException, ServletException {
+        /* Pre-flights never reach the database */
+        if (req.getMethod().equalsIgnoreCase("OPTIONS")) {
+            chain.doFilter(req, res);
+            return;
+        }
+
+        if (!acquire(isPriority(req))) {
+            rejected.increment();
+            res.setHeader("Retry-After", retryAfter);
+            HttpServlet2.writeStatus(req, res, HttpServletResponse.SC_SERVICE_UNAVAILABLE,
+                    "The server is overloaded, try again later");
+            return;
+        }
+
+        /* Exports and bulk imports run for as long as the client takes, their latency says nothing about the database */
+        boolean sampled = !isStream(req);
+        long start = System.nanoTime();
+        AtomicBoolean released = new AtomicBoolean();
+        AtomicBoolean timedOut = new AtomicBoolean();
+        AtomicBoolean failed = new AtomicBoolean();
+        /* An async handler keeps its connection after a timeout has answered the client, so the permit is held
+           until HttpServlet2 finishes the worker. The container may have recycled the response by then */
+        HttpServlet2.addFinisher(req, () -> release(released, start, sampled && !failed.get(),
+                timedOut.get() ? HttpServletResponse.SC_SERVICE_UNAVAILABLE : res.getStatus()));
+        boolean async = false;
+        try {
+            chain.doFilter(req, res);
+            async = req.isAsyncStarted();
+            if (async) {
+                req.getAsyncContext().addListener(new AsyncListener() {
+                    @Override
+                    public void onComplete(AsyncEvent event) {
+                    }
+
+                    @Override
+                    public void onTimeout(AsyncEvent event) {
+                        timedOut.set(true);
+                    }
+
+                    @Override
+                    public void onError(AsyncEvent event) {
+                        failed.set(true);
+                    }
+
+                    @Override
+                    public void onStartAsync(AsyncEvent event) {
+                    }
+                });
+            }
+        } finally {
+            if (!async) release(released, start, sampled, res.getStatus());
+        }
+    }
+
+    /* Issuing and returning books must not be starved by browsing */
+    private static boolean isPriority(HttpServletRequest req) {
+        if (req.getMethod().equalsIgnoreCase("GET") || req.getMethod().equalsIgnoreCase("HEAD")) return false;
+        String path = req.getServletPath();
+        return path.startsWith("/issue-notes") || path.startsWith("/returns");
+    }
+
+    private static boolean isStream(HttpServletRequest req) {
+        String pathInfo = req.getPathInfo();
+        return pathInfo != null && (pathInfo.startsWith("/export") || pathInfo.startsWith("/bulk"));
+    }
+
+    private boolean acquire(boolean priority) {
+        double share = priority ? 1 : readShare;
+        while (true) {
+            int current = inFlight.get();
+            if (current >= Math.max(1, (int) (limit * share))) return false;
+            if (inFlight.compareAndSet(current, current + 1)) return true;
+        }
+    }
+
+    private void release(AtomicBoolean released, long start, boolean sampled, int status) {
+        if (!released.compareAndSet(false, true)) return;
+        int current = inFlight.getAndDecrement();
+        if (!sampled) return;
+        if (status >= 500) {
+            backOff();
+        } else {
+            update(System.nanoTime() - start, current);
+        }
+    }
+
+    private synchronized void backOff() {
+        limit = Math.max(minLimit, limit * BACKOFF);
+    }
+
+    /* A gradient limit: the ratio of the long term to the short term latency scales the limit, plus some headroom */
+    private synchronized void update(long rtt, int inFlight) {
+        if (longRtt == 0) {
+            shortRtt = longRtt = rtt;
+            return;
+        }
+        shortRtt += (rtt - shortRtt) * SHORT_WINDOW;
+        longRtt += (rtt - longRtt) * LONG_WINDOW;
+
+        /* After an overload the average is still high, let it catch up quickly so the limit can recover */
+        if (longRtt > shortRtt * TOLERANCE) longRtt *= 0.95;
+
+        double gradient = Math.max(0.5, Math.min(1.0, TOLERANCE * longRtt / shortRtt));
+        double newLimit = limit * gradient + Math.sqrt(limit);
+
+        /* Do not grow the limit while it is not being used */
+        if (newLimit > limit && inFlight < limit / 2) return;
+
+        limit = Math.max(minLimit, Math.min(maxLimit, limit * (1 - SMOOTHING) + newLimit * SMOOTHING));
+    }
+
+    public int getLimit() {
+        return (int) limit;
+    }
+
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    public long getRejected() {
+        return rejected.sum();
+    }
+}
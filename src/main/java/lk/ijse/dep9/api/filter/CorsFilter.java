@@ -51,7 +51,7 @@ public class CorsFilter extends HttpFilter {
         }else{
             if (req.getMethod().equalsIgnoreCase("GET") ||
                     req.getMethod().equalsIgnoreCase("HEAD")){
-                res.setHeader("Access-Control-Expose-Headers", "X-Total-Count");
+                res.setHeader("Access-Control-Expose-Headers", "X-Total-Count, X-Next-Cursor, ETag");
             }
         }
         chain.doFilter(req, res);
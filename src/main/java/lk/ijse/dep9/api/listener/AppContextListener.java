@@ -0,0 +1,295 @@
+package lk.ijse.dep9.api.listener;
+
+import jakarta.annotation.Resource;
+import jakarta.servlet.ServletContext;
+import jakarta.servlet.ServletContextEvent;
+import jakarta.servlet.ServletContextListener;
+import jakarta.servlet.annotation.WebListener;
+import lk.ijse.dep9.cache.AvailabilityLedger;
+import lk.ijse.dep9.cache.EntityCache;
+import lk.ijse.dep9.cache.LoanRegistry;
+import lk.ijse.dep9.cache.SearchCountCache;
+import lk.ijse.dep9.cache.TableCounter;
+import lk.ijse.dep9.cache.VersionTracker;
+import lk.ijse.dep9.db.ConnectionPool;
+import lk.ijse.dep9.db.GatedDataSource;
+import lk.ijse.dep9.db.InstrumentedDataSource;
+import lk.ijse.dep9.db.SlowQueryLog;
+import lk.ijse.dep9.dto.BookDTO;
+import lk.ijse.dep9.dto.MemberDTO;
+import lk.ijse.dep9.index.BookIndex;
+import lk.ijse.dep9.index.MemberIndex;
+import lk.ijse.dep9.metrics.MetricsRegistry;
+import lk.ijse.dep9.metrics.PrometheusWriter;
+
+import javax.sql.DataSource;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * Creates the in-memory structures shared by the servlets, publishes them as context attributes
+ * and runs their background maintenance.
+ */
+@WebListener
+public class AppContextListener implements ServletContextListener {
+
+    public static final String BOOK_COUNTER = "lk.ijse.dep9.book-counter";
+    public static final String MEMBER_COUNTER = "lk.ijse.dep9.member-counter";
+    public static final String BOOK_SEARCH_COUNTS = "lk.ijse.dep9.book-search-counts";
+    public static final String MEMBER_SEARCH_COUNTS = "lk.ijse.dep9.member-search-counts";
+    public static final String BOOK_INDEX = "lk.ijse.dep9.book-index";
+    public static final String MEMBER_INDEX = "lk.ijse.dep9.member-index";
+    public static final String BOOK_CACHE = "lk.ijse.dep9.book-cache";
+    public static final String MEMBER_CACHE = "lk.ijse.dep9.member-cache";
+    public static final String BOOK_VERSIONS = "lk.ijse.dep9.book-versions";
+    public static final String MEMBER_VERSIONS = "lk.ijse.dep9.member-versions";
+    public static final String AVAILABILITY_LEDGER = "lk.ijse.dep9.availability-ledger";
+    public static final String LOAN_REGISTRY = "lk.ijse.dep9.loan-registry";
+    public static final String EXPORT_PERMITS = "lk.ijse.dep9.export-permits";
+    public static final String JDBC_EXECUTOR = "lk.ijse.dep9.jdbc-executor";
+    public static final String ASYNC_TIMEOUT = "lk.ijse.dep9.async-timeout";
+    public static final String DATA_SOURCE = "lk.ijse.dep9.data-source";
+    public static final String METRICS_REGISTRY = "lk.ijse.dep9.metrics-registry";
+    public static final String SERVER_TIMING = "lk.ijse.dep9.server-timing";
+
+    private static final long RESYNC_INTERVAL_SECONDS = 60;
+    private static final Logger logger = Logger.getLogger(AppContextListener.class.getName());
+
+    @Resource(lookup = "java:comp/env/jdbc/dep9-lms")
+    private DataSource pool;
+
+    private ScheduledExecutorService scheduler;
+    private ExecutorService executor;
+    private SlowQueryLog slowQueryLog;
+
+    @Override
+    public void contextInitialized(ServletContextEvent sce) {
+        ServletContext ctx = sce.getServletContext();
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "lms-background");
+            t.setDaemon(true);
+            return t;
+        });
+
+        MetricsRegistry metrics = new MetricsRegistry();
+        ctx.setAttribute(METRICS_REGISTRY, metrics);
+
+        /* The attribute holds the share of the timed requests that also get a trace record */
+        if (Boolean.parseBoolean(parameter(ctx, "serverTiming", "false"))) {
+            ctx.setAttribute(SERVER_TIMING, Double.parseDouble(parameter(ctx, "traceSampleRate", "0.01")));
+        }
+
+        TableCounter bookCounter = new TableCounter("SELECT COUNT(isbn) FROM book");
+        TableCounter memberCounter = new TableCounter("SELECT COUNT(id) FROM member");
+        ctx.setAttribute(BOOK_COUNTER, bookCounter);
+        ctx.setAttribute(MEMBER_COUNTER, memberCounter);
+        ctx.setAttribute(BOOK_SEARCH_COUNTS, new SearchCountCache(5, TimeUnit.SECONDS, 1000));
+        ctx.setAttribute(MEMBER_SEARCH_COUNTS, new SearchCountCache(5, TimeUnit.SECONDS, 1000));
+        EntityCache<String, BookDTO> bookCache = new EntityCache<>(10_000, 300, 30, TimeUnit.SECONDS);
+        EntityCache<String, MemberDTO> memberCache = new EntityCache<>(10_000, 300, 30, TimeUnit.SECONDS);
+        ctx.setAttribute(BOOK_CACHE, bookCache);
+        ctx.setAttribute(MEMBER_CACHE, memberCache);
+        metrics.register(writer -> writeCacheMetrics(writer, bookCache, memberCache));
+        ctx.setAttribute(BOOK_VERSIONS, new VersionTracker("b"));
+        ctx.setAttribute(MEMBER_VERSIONS, new VersionTracker("m"));
+        ctx.setAttribute(LOAN_REGISTRY, new LoanRegistry(5, TimeUnit.MINUTES));
+
+        /* Exports hold a connection for as long as the client keeps reading, so only a few may run at once */
+        ctx.setAttribute(EXPORT_PERMITS, new Semaphore(Integer.parseInt(parameter(ctx, "exportConnections", "2"))));
+
+        String executionMode = parameter(ctx, "executionMode", "async").toLowerCase();
+        long asyncTimeout = Long.parseLong(parameter(ctx, "asyncTimeout", "30000"));
+        DataSource dataSource = pool;
+
+        /* In virtual mode every request gets its own virtual thread, only the connections are rationed */
+        if (executionMode.equals("virtual")) {
+            ExecutorService executor = virtualThreadExecutor();
+            if (executor == null) {
+                logger.warning("Virtual threads need Java 21 or later, falling back to the async execution mode");
+                executionMode = "async";
+            } else {
+                this.executor = executor;
+                ctx.setAttribute(JDBC_EXECUTOR, executor);
+                ctx.setAttribute(ASYNC_TIMEOUT, asyncTimeout);
+                /* ConnectionPool already waits on a semaphore, other pools block on monitors that pin virtual threads */
+                if (!(pool instanceof ConnectionPool)) {
+                    GatedDataSource gated = new GatedDataSource(pool, poolSize(pool), asyncTimeout);
+                    dataSource = gated;
+                    metrics.register(writer -> {
+                        writer.header("lms_gate_available_permits", "gauge", "Connections that may still be borrowed");
+                        writer.sample("lms_gate_available_permits", gated.getAvailablePermits());
+                        writer.header("lms_gate_waiting_threads", "gauge", "Threads waiting for a connection");
+                        writer.sample("lms_gate_waiting_threads", gated.getWaitingThreads());
+                    });
+                }
+            }
+        }
+
+        /* In async mode the handlers run on as many threads as there are connections, extra requests wait in a bounded queue */
+        if (executionMode.equals("async")) {
+            int threads = poolSize(pool);
+            int queueLimit = Integer.parseInt(parameter(ctx, "asyncQueueLimit", String.valueOf(threads * 16)));
+            AtomicInteger threadCount = new AtomicInteger();
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<>(queueLimit), r -> {
+                Thread t = new Thread(r, "lms-jdbc-" + threadCount.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            });
+            executor.allowCoreThreadTimeOut(true);
+            this.executor = executor;
+            ctx.setAttribute(JDBC_EXECUTOR, executor);
+            ctx.setAttribute(ASYNC_TIMEOUT, asyncTimeout);
+            metrics.register(writer -> {
+                writer.header("lms_executor_active_threads", "gauge", "Handlers running on the JDBC executor");
+                writer.sample("lms_executor_active_threads", executor.getActiveCount());
+                writer.header("lms_executor_queued_requests", "gauge", "Requests waiting for a JDBC executor thread");
+                writer.sample("lms_executor_queued_requests", executor.getQueue().size());
+            });
+        }
+
+        ConnectionPool connectionPool = unwrap(pool);
+        if (connectionPool != null) metrics.register(writer -> writePoolMetrics(writer, connectionPool));
+
+        /* Every statement is timed unless sqlMetrics is turned off */
+        if (Boolean.parseBoolean(parameter(ctx, "sqlMetrics", "true"))) {
+            slowQueryLog = new SlowQueryLog(Long.parseLong(parameter(ctx, "slowQueryThreshold", "500")),
+                    TimeUnit.MILLISECONDS, 1000);
+            InstrumentedDataSource instrumented = new InstrumentedDataSource(dataSource, slowQueryLog);
+            metrics.register(instrumented::writeMetrics);
+            dataSource = instrumented;
+        }
+        if (dataSource != pool) ctx.setAttribute(DATA_SOURCE, dataSource);
+        DataSource connections = dataSource;
+
+        BookIndex bookIndex = new BookIndex();
+        MemberIndex memberIndex = new MemberIndex();
+        ctx.setAttribute(BOOK_INDEX, bookIndex);
+        ctx.setAttribute(MEMBER_INDEX, memberIndex);
+
+        AvailabilityLedger ledger = new AvailabilityLedger();
+        ctx.setAttribute(AVAILABILITY_LEDGER, ledger);
+
+        /* Until the indexes have been built, searches fall back to SQL */
+        schedule(() -> {
+            if (!bookIndex.isReady()) bookIndex.load(connections);
+            if (!memberIndex.isReady()) memberIndex.load(connections);
+        }, 0, RESYNC_INTERVAL_SECONDS);
+        schedule(() -> {
+            bookCounter.resync(connections);
+            memberCounter.resync(connections);
+        }, 0, RESYNC_INTERVAL_SECONDS);
+        schedule(() -> ledger.reconcile(connections), 0, RESYNC_INTERVAL_SECONDS);
+        if (slowQueryLog != null) schedule(slowQueryLog::drain, 1, 1);
+    }
+
+    private static ConnectionPool unwrap(DataSource pool) {
+        try {
+            return pool.isWrapperFor(ConnectionPool.class) ? pool.unwrap(ConnectionPool.class) : null;
+        } catch (SQLException e) {
+            return null;
+        }
+    }
+
+    private static void writePoolMetrics(PrometheusWriter writer, ConnectionPool pool) throws IOException {
+        writer.header("lms_pool_connections", "gauge", "Connections of the pool by state");
+        writer.sample("lms_pool_connections", pool.getActiveConnections(), "state", "active");
+        writer.sample("lms_pool_connections", pool.getIdleConnections(), "state", "idle");
+        writer.header("lms_pool_size", "gauge", "Maximum number of connections");
+        writer.sample("lms_pool_size", pool.getPoolSize());
+        writer.header("lms_pool_pending_threads", "gauge", "Threads waiting for a connection");
+        writer.sample("lms_pool_pending_threads", pool.getPendingThreads());
+        writer.header("lms_pool_acquires_total", "counter", "Connections handed out");
+        writer.sample("lms_pool_acquires_total", pool.getAcquireCount());
+        writer.header("lms_pool_acquire_timeouts_total", "counter", "Requests for a connection that timed out");
+        writer.sample("lms_pool_acquire_timeouts_total", pool.getAcquireTimeoutCount());
+        writer.header("lms_pool_wait_seconds_total", "counter", "Time spent waiting for a connection");
+        writer.sample("lms_pool_wait_seconds_total", pool.getTotalWaitNanos() / 1e9);
+        writer.header("lms_pool_borrow_seconds_total", "counter", "Time connections spent borrowed");
+        writer.sample("lms_pool_borrow_seconds_total", pool.getTotalBorrowNanos() / 1e9);
+        writer.header("lms_pool_connections_created_total", "counter", "Physical connections opened");
+        writer.sample("lms_pool_connections_created_total", pool.getCreatedCount());
+        writer.header("lms_pool_validation_failures_total", "counter", "Idle connections found broken");
+        writer.sample("lms_pool_validation_failures_total", pool.getValidationFailureCount());
+        writer.header("lms_pool_leaks_total", "counter", "Connections held longer than the leak detection threshold");
+        writer.sample("lms_pool_leaks_total", pool.getLeakCount());
+        writer.header("lms_statement_cache_total", "counter", "Statement cache lookups by result");
+        writer.sample("lms_statement_cache_total", pool.getStatementCacheHits(), "result", "hit");
+        writer.sample("lms_statement_cache_total", pool.getStatementCacheMisses(), "result", "miss");
+        writer.header("lms_statement_cache_evictions_total", "counter", "Statements closed to make room in the cache");
+        writer.sample("lms_statement_cache_evictions_total", pool.getStatementCacheEvictions());
+    }
+
+    private static void writeCacheMetrics(PrometheusWriter writer, EntityCache<?, ?> bookCache,
+                                          EntityCache<?, ?> memberCache) throws IOException {
+        writer.header("lms_cache_entries", "gauge", "Entries in the entity caches");
+        writer.sample("lms_cache_entries", bookCache.size(), "cache", "book");
+        writer.sample("lms_cache_entries", memberCache.size(), "cache", "member");
+        writer.header("lms_cache_lookups_total", "counter", "Entity cache lookups by result");
+        writeCacheLookups(writer, "book", bookCache);
+        writeCacheLookups(writer, "member", memberCache);
+        writer.header("lms_cache_evictions_total", "counter", "Entries evicted from the entity caches");
+        writer.sample("lms_cache_evictions_total", bookCache.getEvictions(), "cache", "book");
+        writer.sample("lms_cache_evictions_total", memberCache.getEvictions(), "cache", "member");
+    }
+
+    private static void writeCacheLookups(PrometheusWriter writer, String name, EntityCache<?, ?> cache) throws IOException {
+        writer.sample("lms_cache_lookups_total", cache.getHits(), "cache", name, "result", "hit");
+        writer.sample("lms_cache_lookups_total", cache.getNegativeHits(), "cache", name, "result", "negative_hit");
+        writer.sample("lms_cache_lookups_total", cache.getMisses(), "cache", name, "result", "miss");
+    }
+
+    /* Looked up reflectively so that the application still builds and runs on Java 17 */
+    private static ExecutorService virtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    private static String parameter(ServletContext ctx, String name, String defaultValue) {
+        String value = ctx.getInitParameter(name);
+        return value == null ? defaultValue : value.trim();
+    }
+
+    /* Works with this application's ConnectionPool as well as the DBCP, Tomcat JDBC and Hikari pools */
+    private static int poolSize(DataSource pool) {
+        for (String getter : new String[]{"getPoolSize", "getMaxTotal", "getMaxActive", "getMaximumPoolSize"}) {
+            try {
+                Object size = pool.getClass().getMethod(getter).invoke(pool);
+                if (size instanceof Integer && (Integer) size > 0) return (Integer) size;
+            } catch (ReflectiveOperationException | RuntimeException e) {
+                /* Not this kind of pool */
+            }
+        }
+        return 8;
+    }
+
+    /* A failing task must not cancel its later runs */
+    private void schedule(Runnable task, long initialDelaySeconds, long periodSeconds) {
+        scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                task.run();
+            } catch (Throwable t) {
+                t.printStackTrace();
+            }
+        }, initialDelaySeconds, periodSeconds, TimeUnit.SECONDS);
+    }
+
+    @Override
+    public void contextDestroyed(ServletContextEvent sce) {
+        scheduler.shutdownNow();
+        if (slowQueryLog != null) slowQueryLog.drain();
+        if (executor != null) executor.shutdownNow();
+    }
+}
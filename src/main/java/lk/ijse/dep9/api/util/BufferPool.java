@@ -0,0 +1,35 @@
+package lk.ijse.dep9.api.util;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A small lock-free pool of fixed size byte buffers shared by the response writers.
+ */
+public final class BufferPool {
+
+    public static final int BUFFER_SIZE = 8192;
+    private static final int MAX_POOLED = 256;
+
+    private static final ConcurrentLinkedQueue<byte[]> buffers = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger pooled = new AtomicInteger();
+
+    private BufferPool() {
+    }
+
+    public static byte[] acquire() {
+        byte[] buffer = buffers.poll();
+        if (buffer == null) return new byte[BUFFER_SIZE];
+        pooled.decrementAndGet();
+        return buffer;
+    }
+
+    public static void release(byte[] buffer) {
+        if (buffer == null || buffer.length != BUFFER_SIZE) return;
+        if (pooled.incrementAndGet() > MAX_POOLED) {
+            pooled.decrementAndGet();
+            return;
+        }
+        buffers.offer(buffer);
+    }
+}
@@ -0,0 +1,24 @@
+package lk.ijse.dep9.api.util;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+/**
+ * Opaque tokens for keyset pagination. A token wraps the key of the last row of the previous page;
+ * an empty token means the first page.
+ */
+public final class Cursor {
+
+    private Cursor() {
+    }
+
+    public static String encode(String key) {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(key.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /* Throws IllegalArgumentException if the token has been tampered with */
+    public static String decode(String token) {
+        if (token.isEmpty()) return "";
+        return new String(Base64.getUrlDecoder().decode(token), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,61 @@
+package lk.ijse.dep9.api.util;
+
+import jakarta.servlet.http.HttpServletRequest;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * Shared plumbing of the export endpoints. Rows are streamed from the server one at a time and written
+ * with blocking I/O, so a slow client simply slows the fetch down instead of filling the heap.
+ */
+public final class Exports {
+
+    public static final int FLUSH_INTERVAL = 256;
+
+    /* MySQL gives up on a streaming result after net_write_timeout, which a slow client must not trip */
+    private static final int WRITE_TIMEOUT_SECONDS = 3600;
+
+    private Exports() {
+    }
+
+    public static boolean isCsv(HttpServletRequest request) {
+        String format = request.getParameter("format");
+        if (format != null) return format.equalsIgnoreCase("csv");
+        String accept = request.getHeader("Accept");
+        return accept != null && accept.contains("text/csv");
+    }
+
+    public static String contentType(boolean csv) {
+        return csv ? "text/csv; charset=UTF-8" : JsonCodec.NDJSON_CONTENT_TYPE;
+    }
+
+    public static void stream(Connection connection, String sql, Binder binder, RowHandler handler)
+            throws SQLException, IOException {
+        try (Statement session = connection.createStatement()) {
+            session.execute("SET SESSION net_write_timeout = " + WRITE_TIMEOUT_SECONDS);
+            try (PreparedStatement stm = connection.prepareStatement(sql,
+                    ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+                stm.setFetchSize(Integer.MIN_VALUE);
+                binder.bind(stm);
+                try (ResultSet rst = stm.executeQuery()) {
+                    handler.handle(rst);
+                }
+            } finally {
+                session.execute("SET SESSION net_write_timeout = DEFAULT");
+            }
+        }
+    }
+
+    public interface Binder {
+        void bind(PreparedStatement stm) throws SQLException;
+    }
+
+    public interface RowHandler {
+        void handle(ResultSet rst) throws SQLException, IOException;
+    }
+}
@@ -1,47 +1,426 @@
 package lk.ijse.dep9.api.util;
 
-import jakarta.json.bind.JsonbBuilder;
+import jakarta.servlet.AsyncContext;
+import jakarta.servlet.AsyncEvent;
+import jakarta.servlet.AsyncListener;
+import jakarta.servlet.ServletConfig;
 import jakarta.servlet.ServletException;
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.ServletRegistration;
+import jakarta.servlet.ServletRequest;
+import jakarta.servlet.ServletResponse;
+import jakarta.servlet.ServletResponseWrapper;
+import jakarta.servlet.WriteListener;
 import jakarta.servlet.http.HttpServlet;
 import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
+import jakarta.servlet.http.HttpServletResponseWrapper;
+import lk.ijse.dep9.api.listener.AppContextListener;
+import lk.ijse.dep9.cache.VersionTracker;
 import lk.ijse.dep9.dto.ResponseStatusDTO;
 import lk.ijse.dep9.exception.ResponseStatusException;
+import lk.ijse.dep9.metrics.MetricsRegistry;
+import lk.ijse.dep9.metrics.RouteMetrics;
+import lk.ijse.dep9.metrics.ServerTiming;
 
+import javax.sql.DataSource;
+import java.io.Closeable;
 import java.io.IOException;
+import java.io.PrintWriter;
 import java.util.Date;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class HttpServlet2 extends HttpServlet {
 
+    /* A filter that has to do some work once the handler is done adds a Closeable under this attribute, see addFinisher */
+    public static final String RESPONSE_FINISHER = "lk.ijse.dep9.response-finisher";
+
+    private ExecutorService executor;
+    private long asyncTimeout;
+    private DataSource dataSource;
+    private RouteMetrics metrics;
+    private Double traceSampleRate;
+
+    @Override
+    public void init(ServletConfig config) throws ServletException {
+        MetricsRegistry registry = (MetricsRegistry) config.getServletContext().getAttribute(AppContextListener.METRICS_REGISTRY);
+        if (registry != null) metrics = registry.route(route(config));
+        executor = (ExecutorService) config.getServletContext().getAttribute(AppContextListener.JDBC_EXECUTOR);
+        Long timeout = (Long) config.getServletContext().getAttribute(AppContextListener.ASYNC_TIMEOUT);
+        asyncTimeout = timeout == null ? 0 : timeout;
+        dataSource = (DataSource) config.getServletContext().getAttribute(AppContextListener.DATA_SOURCE);
+        traceSampleRate = (Double) config.getServletContext().getAttribute(AppContextListener.SERVER_TIMING);
+        super.init(config);
+    }
+
+    /* The first URL pattern of the servlet, or its name if it has none */
+    private static String route(ServletConfig config) {
+        ServletRegistration registration = config.getServletContext().getServletRegistration(config.getServletName());
+        if (registration != null) {
+            for (String mapping : registration.getMappings()) {
+                return mapping;
+            }
+        }
+        return config.getServletName();
+    }
+
+    /* Closed once an async handler has returned, even if the request timed out before. Inner filters add theirs
+       later, and their finishers run first */
+    public static void addFinisher(ServletRequest req, Closeable finisher) {
+        Object previous = req.getAttribute(RESPONSE_FINISHER);
+        if (!(previous instanceof Closeable)) {
+            req.setAttribute(RESPONSE_FINISHER, finisher);
+            return;
+        }
+        req.setAttribute(RESPONSE_FINISHER, (Closeable) () -> {
+            try {
+                finisher.close();
+            } finally {
+                ((Closeable) previous).close();
+            }
+        });
+    }
+
+    /* The DataSource the handlers should use, which is rationed when the execution mode asks for it */
+    protected DataSource connections(DataSource pool) {
+        return dataSource == null ? pool : dataSource;
+    }
+
+    /* Bulk and streaming routes take as long as their data does, the async timeout doesn't apply to them */
+    protected boolean isLongRunning(HttpServletRequest req) {
+        return false;
+    }
+
+    /* Called on the container thread before a request is handed to the executor. A handler that can answer without
+       the database, from a cache, an index or an ETag, does so and returns true; returning false queues the request */
+    protected boolean answerInline(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+        return false;
+    }
+
+    /* Sets the ETag and answers 304 if the client already has it. Take the tag before the query runs, so a concurrent
+       write can only make it look older than the body. If-None-Match: * only matches a representation that exists,
+       so a single row is checked again with exists set once it has been found */
+    protected boolean notModified(String etag, boolean exists, HttpServletRequest req, HttpServletResponse resp) {
+        resp.setHeader("ETag", etag);
+        resp.setHeader("Cache-Control", "no-cache");
+        String ifNoneMatch = req.getHeader("If-None-Match");
+        if (VersionTracker.matches(ifNoneMatch, etag) || exists && VersionTracker.isWildcard(ifNoneMatch)) {
+            resp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return true;
+        }
+        return false;
+    }
+
     protected void doPatch(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
         resp.sendError(HttpServletResponse.SC_METHOD_NOT_ALLOWED);
     }
 
     @Override
     protected void service(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+        long start = System.nanoTime();
+        if (executor == null || !req.isAsyncSupported()) {
+            try {
+                dispatch(req, resp, start, false);
+            } finally {
+                record(req, resp, start);
+            }
+            return;
+        }
+
+        if (dispatch(req, resp, start, true)) {
+            record(req, resp, start);
+            return;
+        }
+
+        /* Anything that needs a connection is handed over, the handler runs on the executor */
+        AsyncContext asyncContext = req.startAsync(req, resp);
+        asyncContext.setTimeout(isLongRunning(req) ? 0 : asyncTimeout);
+        /* Taken now, the request may already have been recycled by the time the worker is done with it */
+        Object finisher = req.getAttribute(RESPONSE_FINISHER);
+        AtomicBoolean cancelled = new AtomicBoolean();
+        asyncContext.addListener(new AsyncListener() {
+            /* The worker may still be writing and holding a connection, so the listener only answers the client.
+               Pooled buffers are released and the request completed by the worker once the handler returns */
+            @Override
+            public void onTimeout(AsyncEvent event) throws IOException {
+                if (!cancelled.compareAndSet(false, true)) return;
+                if (!resp.isCommitted()) {
+                    /* Past the filters' wrappers, whose buffers belong to the worker */
+                    HttpServletResponse container = unwrap(resp);
+                    container.resetBuffer();
+                    writeStatus(req, container, HttpServletResponse.SC_SERVICE_UNAVAILABLE, "The request timed out");
+                    container.flushBuffer();
+                }
+                record(req, resp, start);
+            }
+
+            @Override
+            public void onError(AsyncEvent event) {
+                cancelled.set(true);
+            }
+
+            @Override
+            public void onComplete(AsyncEvent event) {
+            }
+
+            @Override
+            public void onStartAsync(AsyncEvent event) {
+            }
+        });
+
+        try {
+            executor.execute(() -> {
+                try {
+                    /* Nobody is waiting for a request that timed out while it was queued */
+                    if (!cancelled.get()) dispatch(req, resp, start, false);
+                } catch (Throwable t) {
+                    /* Anything left over at this point is a broken connection or a request that has timed out */
+                    if (!cancelled.get()) t.printStackTrace();
+                } finally {
+                    finish(asyncContext, finisher, req, resp, start, !cancelled.getAndSet(true));
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            /* The handler never ran, so nothing else is using the response */
+            if (cancelled.compareAndSet(false, true)) {
+                resp.setHeader("Retry-After", "1");
+                abort(asyncContext, finisher, req, resp, start);
+            }
+        }
+    }
+
+    private void abort(AsyncContext asyncContext, Object finisher, HttpServletRequest req, HttpServletResponse resp,
+                       long start) throws IOException {
         try {
-            if (req.getMethod().equalsIgnoreCase("PATCH")) {
-                doPatch(req, resp);
+            if (!resp.isCommitted()) {
+                resp.resetBuffer();
+                writeStatus(req, resp, HttpServletResponse.SC_SERVICE_UNAVAILABLE, "The server is busy, try again later");
+            }
+        } finally {
+            finish(asyncContext, finisher, req, resp, start, true);
+        }
+    }
+
+    private void finish(AsyncContext asyncContext, Object finisher, HttpServletRequest req, HttpServletResponse resp,
+                        long start, boolean record) {
+        try {
+            if (record) record(req, resp, start);
+            if (finisher instanceof Closeable) ((Closeable) finisher).close();
+        } catch (IOException | RuntimeException e) {
+            /* The client has gone away */
+        } finally {
+            try {
+                asyncContext.complete();
+            } catch (IllegalStateException e) {
+                /* The container completes a request itself after a timeout or an error */
+            }
+        }
+    }
+
+    private static HttpServletResponse unwrap(ServletResponse response) {
+        while (response instanceof ServletResponseWrapper) {
+            response = ((ServletResponseWrapper) response).getResponse();
+        }
+        return (HttpServletResponse) response;
+    }
+
+    private void record(HttpServletRequest req, HttpServletResponse resp, long start) {
+        if (metrics != null) metrics.record(req.getMethod(), resp.getStatus(), System.nanoTime() - start);
+    }
+
+    /* Returns whether the request was handled, which only an inline attempt may decline */
+    private boolean dispatch(HttpServletRequest req, HttpServletResponse resp, long start, boolean inline)
+            throws ServletException, IOException {
+        if (traceSampleRate == null) return handle(req, resp, inline);
+
+        ServerTiming timing = ServerTiming.begin(start, traceSampleRate);
+        boolean handled = false;
+        try {
+            handled = handle(req, new TimedResponse(resp, timing), inline);
+            return handled;
+        } finally {
+            timing.end();
+            if (handled) {
+                if (!resp.isCommitted()) resp.setHeader("Server-Timing", timing.header());
+                if (timing.isSampled()) timing.trace(req.getMethod(), req.getRequestURI(), resp.getStatus());
+            }
+        }
+    }
+
+    /* Once the body has started the header may already be on its way, so it goes out with the phases so far */
+    private static class TimedResponse extends HttpServletResponseWrapper {
+        private final ServerTiming timing;
+
+        TimedResponse(HttpServletResponse response, ServerTiming timing) {
+            super(response);
+            this.timing = timing;
+        }
+
+        @Override
+        public ServletOutputStream getOutputStream() throws IOException {
+            if (!isCommitted()) setHeader("Server-Timing", timing.header());
+            return super.getOutputStream();
+        }
+
+        @Override
+        public PrintWriter getWriter() throws IOException {
+            if (!isCommitted()) setHeader("Server-Timing", timing.header());
+            return super.getWriter();
+        }
+    }
+
+    private boolean handle(HttpServletRequest req, HttpServletResponse resp, boolean inline) throws ServletException, IOException {
+        TaggedResponse tagged = new TaggedResponse(resp);
+        try {
+            if (inline) {
+                if (!answerInline(req, tagged)) return false;
+            } else if (req.getMethod().equalsIgnoreCase("PATCH")) {
+                doPatch(req, tagged);
             } else {
-                super.service(req, resp);
+                super.service(req, tagged);
             }
+            tagged.tag();
+            return true;
         } catch (Throwable t) {
             ResponseStatusException r = t instanceof ResponseStatusException ?
                     (ResponseStatusException) t : null;
 
             if (r == null || r.getStatus() >= 500) {
                 t.printStackTrace();
+                if (metrics != null) metrics.error(req.getMethod());
+            }
+
+            /* Part of the body has already been sent, it is too late to change the status */
+            if (resp.isCommitted()) return true;
+            resp.resetBuffer();
+
+            /* The tag of the resource is still held back by the wrapper, so the error body goes out without it */
+            writeStatus(req, resp, r == null ? 500 : r.getStatus(), t.getMessage());
+            return true;
+        }
+    }
+
+    /* Holds the ETag back until the body starts or the handler returns, and drops it from error responses, which
+       must never be revalidated against the tag of the resource. Containers ignore a null header, it can't be removed */
+    private static class TaggedResponse extends HttpServletResponseWrapper {
+        private String etag;
+        private ServletOutputStream stream;
+
+        TaggedResponse(HttpServletResponse response) {
+            super(response);
+        }
+
+        void tag() {
+            if (etag != null && getStatus() < 400 && !isCommitted()) super.setHeader("ETag", etag);
+            etag = null;
+        }
+
+        @Override
+        public void setHeader(String name, String value) {
+            if (name.equalsIgnoreCase("ETag")) {
+                etag = value;
+            } else {
+                super.setHeader(name, value);
             }
+        }
+
+        @Override
+        public void addHeader(String name, String value) {
+            if (name.equalsIgnoreCase("ETag")) {
+                etag = value;
+            } else {
+                super.addHeader(name, value);
+            }
+        }
+
+        @Override
+        public boolean containsHeader(String name) {
+            return name.equalsIgnoreCase("ETag") && etag != null || super.containsHeader(name);
+        }
+
+        @Override
+        public String getHeader(String name) {
+            return name.equalsIgnoreCase("ETag") && etag != null ? etag : super.getHeader(name);
+        }
+
+        @Override
+        public void sendError(int sc, String msg) throws IOException {
+            etag = null;
+            super.sendError(sc, msg);
+        }
 
-            ResponseStatusDTO statusDTO = new ResponseStatusDTO(
-                    r == null ? 500 : r.getStatus(),
-                    t.getMessage(),
-                    req.getRequestURI(),
-                    new Date().getTime());
+        @Override
+        public void sendError(int sc) throws IOException {
+            etag = null;
+            super.sendError(sc);
+        }
 
-            resp.setContentType("application/json");
-            resp.setStatus(statusDTO.getStatus());
-            JsonbBuilder.create().toJson(statusDTO, resp.getWriter());
+        @Override
+        public void flushBuffer() throws IOException {
+            tag();
+            super.flushBuffer();
         }
+
+        @Override
+        public ServletOutputStream getOutputStream() throws IOException {
+            if (stream != null) return stream;
+            ServletOutputStream out = super.getOutputStream();
+            stream = new ServletOutputStream() {
+                @Override
+                public boolean isReady() {
+                    return out.isReady();
+                }
+
+                @Override
+                public void setWriteListener(WriteListener writeListener) {
+                    out.setWriteListener(writeListener);
+                }
+
+                @Override
+                public void write(int b) throws IOException {
+                    tag();
+                    out.write(b);
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    tag();
+                    out.write(b, off, len);
+                }
+
+                @Override
+                public void flush() throws IOException {
+                    tag();
+                    out.flush();
+                }
+
+                @Override
+                public void close() throws IOException {
+                    tag();
+                    out.close();
+                }
+            };
+            return stream;
+        }
+
+        @Override
+        public PrintWriter getWriter() throws IOException {
+            tag();
+            return super.getWriter();
+        }
+    }
+
+    public static void writeStatus(HttpServletRequest req, HttpServletResponse resp, int status, String message) throws IOException {
+        ResponseStatusDTO statusDTO = new ResponseStatusDTO(
+                status,
+                message,
+                req.getRequestURI(),
+                new Date().getTime());
+
+        resp.setContentType(JsonCodec.CONTENT_TYPE);
+        resp.setStatus(statusDTO.getStatus());
+        JsonCodec.writeStatus(statusDTO, resp.getOutputStream());
     }
 }
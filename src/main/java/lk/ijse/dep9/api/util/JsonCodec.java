@@ -0,0 +1,509 @@
+package lk.ijse.dep9.api.util;
+
+import jakarta.json.Json;
+import jakarta.json.JsonException;
+import jakarta.json.bind.JsonbException;
+import jakarta.json.stream.JsonParser;
+import jakarta.json.stream.JsonParserFactory;
+import lk.ijse.dep9.dto.BookDTO;
+import lk.ijse.dep9.dto.IssueNoteDTO;
+import lk.ijse.dep9.dto.MemberDTO;
+import lk.ijse.dep9.dto.ResponseStatusDTO;
+import lk.ijse.dep9.dto.ReturnDTO;
+import lk.ijse.dep9.dto.ReturnItemDTO;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Hand written JSON readers and writers for the DTOs of this API.
+ * The output is identical to what {@code JsonbBuilder.create().toJson(...)} produces for the same objects
+ * (lexicographic property order unless the DTO declares one, null properties omitted),
+ * and the readers accept the same documents Yasson does, without creating a Jsonb runtime per request.
+ */
+public final class JsonCodec {
+
+    /* The writers produce UTF-8, which has to be declared or a client may decode the body as ISO-8859-1 */
+    public static final String CONTENT_TYPE = "application/json; charset=UTF-8";
+    public static final String NDJSON_CONTENT_TYPE = "application/x-ndjson; charset=UTF-8";
+
+    private static final JsonParserFactory PARSER_FACTORY = Json.createParserFactory(null);
+
+    private static final byte[] ADDRESS = JsonOutput.name("address");
+    private static final byte[] AUTHOR = JsonOutput.name("author");
+    private static final byte[] BOOKS = JsonOutput.name("books");
+    private static final byte[] CONTACT = JsonOutput.name("contact");
+    private static final byte[] COPIES = JsonOutput.name("copies");
+    private static final byte[] DATE = JsonOutput.name("date");
+    private static final byte[] ERROR = JsonOutput.name("error");
+    private static final byte[] FAILED = JsonOutput.name("failed");
+    private static final byte[] ID = JsonOutput.name("id");
+    private static final byte[] IMPORTED = JsonOutput.name("imported");
+    private static final byte[] ISBN = JsonOutput.name("isbn");
+    private static final byte[] ISSUE_NOTE_ID = JsonOutput.name("issueNoteId");
+    private static final byte[] MEMBER_ID = JsonOutput.name("memberId");
+    private static final byte[] MESSAGE = JsonOutput.name("message");
+    private static final byte[] NAME = JsonOutput.name("name");
+    private static final byte[] PATH = JsonOutput.name("path");
+    private static final byte[] RETURN_ITEMS = JsonOutput.name("returnItems");
+    private static final byte[] ROW = JsonOutput.name("row");
+    private static final byte[] ROWS = JsonOutput.name("rows");
+    private static final byte[] STATUS = JsonOutput.name("status");
+    private static final byte[] TIMESTAMP = JsonOutput.name("timestamp");
+    private static final byte[] TITLE = JsonOutput.name("title");
+    private static final byte[] NULL = {'n', 'u', 'l', 'l'};
+
+    private JsonCodec() {
+    }
+
+    /* Writers */
+
+    public static void writeBook(BookDTO book, OutputStream out) throws IOException {
+        try (JsonOutput json = new JsonOutput(out)) {
+            writeBook(json, book);
+        }
+    }
+
+    public static void writeBooks(List<BookDTO> books, OutputStream out) throws IOException {
+        try (JsonOutput json = new JsonOutput(out)) {
+            json.write('[');
+            for (int i = 0; i < books.size(); i++) {
+                if (i > 0) json.write(',');
+                writeBook(json, books.get(i));
+            }
+            json.write(']');
+        }
+    }
+
+    public static void writeBook(JsonOutput json, BookDTO book) throws IOException {
+        if (book == null) {
+            json.write(NULL);
+            return;
+        }
+        writeBook(json, book.getIsbn(), book.getTitle(), book.getAuthor(), book.getCopies());
+    }
+
+    public static void writeBook(JsonOutput json, String isbn, String title, String author, Integer copies) throws IOException {
+        json.write('{');
+        boolean first = true;
+        first = string(json, first, AUTHOR, author);
+        first = number(json, first, COPIES, copies);
+        first = string(json, first, ISBN, isbn);
+        string(json, first, TITLE, title);
+        json.write('}');
+    }
+
+    public static void writeMember(MemberDTO member, OutputStream out) throws IOException {
+        try (JsonOutput json = new JsonOutput(out)) {
+            writeMember(json, member);
+        }
+    }
+
+    public static void writeMembers(List<MemberDTO> members, OutputStream out) throws IOException {
+        try (JsonOutput json = new JsonOutput(out)) {
+            json.write('[');
+            for (int i = 0; i < members.size(); i++) {
+                if (i > 0) json.write(',');
+                writeMember(json, members.get(i));
+            }
+            json.write(']');
+        }
+    }
+
+    public static void writeMember(JsonOutput json, MemberDTO member) throws IOException {
+        if (member == null) {
+            json.write(NULL);
+            return;
+        }
+        writeMember(json, member.getId(), member.getName(), member.getAddress(), member.getContact());
+    }
+
+    /* MemberDTO declares @JsonbPropertyOrder({"id", "name", "address", "contact"}) */
+    public static void writeMember(JsonOutput json, String id, String name, String address, String contact) throws IOException {
+        json.write('{');
+        boolean first = true;
+        first = string(json, first, ID, id);
+        first = string(json, first, NAME, name);
+        first = string(json, first, ADDRESS, address);
+        string(json, first, CONTACT, contact);
+        json.write('}');
+    }
+
+    public static void writeIssueNote(IssueNoteDTO issueNote, OutputStream out) throws IOException {
+        try (JsonOutput json = new JsonOutput(out)) {
+            writeIssueNote(json, issueNote);
+        }
+    }
+
+    public static void writeIssueNote(JsonOutput json, IssueNoteDTO issueNote) throws IOException {
+        json.write('{');
+        boolean first = true;
+        if (issueNote.getBooks() != null) {
+            first = name(json, first, BOOKS);
+            json.write('[');
+            for (int i = 0; i < issueNote.getBooks().size(); i++) {
+                if (i > 0) json.write(',');
+                String isbn = issueNote.getBooks().get(i);
+                if (isbn == null) json.write(NULL); else json.writeString(isbn);
+            }
+            json.write(']');
+        }
+        first = string(json, first, DATE, issueNote.getDate() == null ? null : issueNote.getDate().toString());
+        first = number(json, first, ID, issueNote.getId());
+        string(json, first, MEMBER_ID, issueNote.getMemberId());
+        json.write('}');
+    }
+
+    public static void writeReturn(ReturnDTO returnDTO, OutputStream out) throws IOException {
+        try (JsonOutput json = new JsonOutput(out)) {
+            json.write('{');
+            boolean first = string(json, true, MEMBER_ID, returnDTO.getMemberId());
+            if (returnDTO.getReturnItems() != null) {
+                name(json, first, RETURN_ITEMS);
+                json.write('[');
+                for (int i = 0; i < returnDTO.getReturnItems().size(); i++) {
+                    if (i > 0) json.write(',');
+                    ReturnItemDTO item = returnDTO.getReturnItems().get(i);
+                    if (item == null) {
+                        json.write(NULL);
+                        continue;
+                    }
+                    json.write('{');
+                    boolean firstItem = string(json, true, ISBN, item.getIsbn());
+                    number(json, firstItem, ISSUE_NOTE_ID, item.getIssueNoteId());
+                    json.write('}');
+                }
+                json.write(']');
+            }
+            json.write('}');
+        }
+    }
+
+    public static void writeStatus(ResponseStatusDTO status, OutputStream out) throws IOException {
+        try (JsonOutput json = new JsonOutput(out)) {
+            json.write('{');
+            boolean first = true;
+            first = string(json, first, MESSAGE, status.getMessage());
+            first = string(json, first, PATH, status.getPath());
+            first = number(json, first, STATUS, status.getStatus());
+            number(json, first, TIMESTAMP, status.getTimestamp());
+            json.write('}');
+        }
+    }
+
+    /* One line of the NDJSON result of a bulk import */
+    public static void writeImportError(JsonOutput json, long row, String isbn, String error) throws IOException {
+        json.write('{');
+        boolean first = true;
+        first = string(json, first, ERROR, error);
+        first = string(json, first, ISBN, isbn);
+        number(json, first, ROW, row);
+        json.write('}');
+        json.write('\n');
+    }
+
+    public static void writeImportSummary(JsonOutput json, long rows, long imported, long failed) throws IOException {
+        json.write('{');
+        boolean first = true;
+        first = number(json, first, FAILED, failed);
+        first = number(json, first, IMPORTED, imported);
+        number(json, first, ROWS, rows);
+        json.write('}');
+        json.write('\n');
+    }
+
+    private static boolean name(JsonOutput json, boolean first, byte[] name) throws IOException {
+        if (!first) json.write(',');
+        json.write(name);
+        return false;
+    }
+
+    private static boolean string(JsonOutput json, boolean first, byte[] name, String value) throws IOException {
+        if (value == null) return first;
+        name(json, first, name);
+        json.writeString(value);
+        return false;
+    }
+
+    private static boolean number(JsonOutput json, boolean first, byte[] name, Number value) throws IOException {
+        if (value == null) return first;
+        name(json, first, name);
+        json.writeLong(value.longValue());
+        return false;
+    }
+
+    /* Readers */
+
+    public static BookDTO readBook(InputStream in) {
+        try (JsonParser parser = PARSER_FACTORY.createParser(in)) {
+            return readBook(parser);
+        } catch (JsonException e) {
+            throw new JsonbException("Invalid JSON", e);
+        }
+    }
+
+    public static BookDTO readBook(Reader reader) {
+        try (JsonParser parser = PARSER_FACTORY.createParser(reader)) {
+            return readBook(parser);
+        } catch (JsonException e) {
+            throw new JsonbException("Invalid JSON", e);
+        }
+    }
+
+    private static BookDTO readBook(JsonParser parser) {
+        try {
+            if (!beginObject(parser)) return null;
+            BookDTO book = new BookDTO();
+            while (nextProperty(parser)) {
+                switch (parser.getString()) {
+                    case "isbn":
+                        book.setIsbn(readString(parser));
+                        break;
+                    case "title":
+                        book.setTitle(readString(parser));
+                        break;
+                    case "author":
+                        book.setAuthor(readString(parser));
+                        break;
+                    case "copies":
+                        book.setCopies(readInteger(parser));
+                        break;
+                    default:
+                        skipValue(parser);
+                }
+            }
+            return book;
+        } catch (JsonException | NoSuchElementException | IllegalStateException e) {
+            throw new JsonbException("Invalid JSON", e);
+        }
+    }
+
+    public static MemberDTO readMember(InputStream in) {
+        try (JsonParser parser = PARSER_FACTORY.createParser(in)) {
+            if (!beginObject(parser)) return null;
+            MemberDTO member = new MemberDTO();
+            while (nextProperty(parser)) {
+                switch (parser.getString()) {
+                    case "id":
+                        member.setId(readString(parser));
+                        break;
+                    case "name":
+                        member.setName(readString(parser));
+                        break;
+                    case "address":
+                        member.setAddress(readString(parser));
+                        break;
+                    case "contact":
+                        member.setContact(readString(parser));
+                        break;
+                    default:
+                        skipValue(parser);
+                }
+            }
+            return member;
+        } catch (JsonException | NoSuchElementException | IllegalStateException e) {
+            throw new JsonbException("Invalid JSON", e);
+        }
+    }
+
+    public static IssueNoteDTO readIssueNote(InputStream in) {
+        try (JsonParser parser = PARSER_FACTORY.createParser(in)) {
+            if (!beginObject(parser)) return null;
+            IssueNoteDTO issueNote = new IssueNoteDTO();
+            while (nextProperty(parser)) {
+                switch (parser.getString()) {
+                    case "id":
+                        issueNote.setId(readInteger(parser));
+                        break;
+                    case "date":
+                        String date = readString(parser);
+                        try {
+                            issueNote.setDate(date == null ? null : LocalDate.parse(date));
+                        } catch (DateTimeParseException e) {
+                            throw new JsonbException("Invalid date: " + date, e);
+                        }
+                        break;
+                    case "memberId":
+                        issueNote.setMemberId(readString(parser));
+                        break;
+                    case "books":
+                        JsonParser.Event event = parser.next();
+                        if (event == JsonParser.Event.VALUE_NULL) {
+                            issueNote.setBooks(null);
+                            break;
+                        }
+                        expect(event, JsonParser.Event.START_ARRAY);
+                        ArrayList<String> books = new ArrayList<>();
+                        while ((event = parser.next()) != JsonParser.Event.END_ARRAY) {
+                            books.add(stringValue(parser, event));
+                        }
+                        issueNote.setBooks(books);
+                        break;
+                    default:
+                        skipValue(parser);
+                }
+            }
+            return issueNote;
+        } catch (JsonException | NoSuchElementException | IllegalStateException e) {
+            throw new JsonbException("Invalid JSON", e);
+        }
+    }
+
+    public static ReturnDTO readReturn(InputStream in) {
+        try (JsonParser parser = PARSER_FACTORY.createParser(in)) {
+            if (!beginObject(parser)) return null;
+            ReturnDTO returnDTO = new ReturnDTO();
+            while (nextProperty(parser)) {
+                switch (parser.getString()) {
+                    case "memberId":
+                        returnDTO.setMemberId(readString(parser));
+                        break;
+                    case "returnItems":
+                        JsonParser.Event event = parser.next();
+                        if (event == JsonParser.Event.VALUE_NULL) {
+                            returnDTO.setReturnItems(null);
+                            break;
+                        }
+                        expect(event, JsonParser.Event.START_ARRAY);
+                        List<ReturnItemDTO> items = new ArrayList<>();
+                        while ((event = parser.next()) != JsonParser.Event.END_ARRAY) {
+                            if (event == JsonParser.Event.VALUE_NULL) {
+                                items.add(null);
+                                continue;
+                            }
+                            expect(event, JsonParser.Event.START_OBJECT);
+                            items.add(readReturnItem(parser));
+                        }
+                        returnDTO.setReturnItems(items);
+                        break;
+                    default:
+                        skipValue(parser);
+                }
+            }
+            return returnDTO;
+        } catch (JsonException | NoSuchElementException | IllegalStateException e) {
+            throw new JsonbException("Invalid JSON", e);
+        }
+    }
+
+    public static ResponseStatusDTO readStatus(InputStream in) {
+        try (JsonParser parser = PARSER_FACTORY.createParser(in)) {
+            if (!beginObject(parser)) return null;
+            ResponseStatusDTO status = new ResponseStatusDTO();
+            while (nextProperty(parser)) {
+                switch (parser.getString()) {
+                    case "status":
+                        status.setStatus(readInteger(parser));
+                        break;
+                    case "message":
+                        status.setMessage(readString(parser));
+                        break;
+                    case "path":
+                        status.setPath(readString(parser));
+                        break;
+                    case "timestamp":
+                        String timestamp = readString(parser);
+                        try {
+                            status.setTimestamp(timestamp == null ? null : Long.parseLong(timestamp));
+                        } catch (NumberFormatException e) {
+                            throw new JsonbException("Invalid timestamp: " + timestamp, e);
+                        }
+                        break;
+                    default:
+                        skipValue(parser);
+                }
+            }
+            return status;
+        } catch (JsonException | NoSuchElementException | IllegalStateException e) {
+            throw new JsonbException("Invalid JSON", e);
+        }
+    }
+
+    private static ReturnItemDTO readReturnItem(JsonParser parser) {
+        ReturnItemDTO item = new ReturnItemDTO();
+        while (nextProperty(parser)) {
+            switch (parser.getString()) {
+                case "issueNoteId":
+                    item.setIssueNoteId(readInteger(parser));
+                    break;
+                case "isbn":
+                    item.setIsbn(readString(parser));
+                    break;
+                default:
+                    skipValue(parser);
+            }
+        }
+        return item;
+    }
+
+    /* Returns false for a top level null, which Yasson maps to a null object */
+    private static boolean beginObject(JsonParser parser) {
+        if (!parser.hasNext()) throw new JsonbException("Empty JSON");
+        JsonParser.Event event = parser.next();
+        if (event == JsonParser.Event.VALUE_NULL) return false;
+        expect(event, JsonParser.Event.START_OBJECT);
+        return true;
+    }
+
+    private static boolean nextProperty(JsonParser parser) {
+        JsonParser.Event event = parser.next();
+        if (event == JsonParser.Event.END_OBJECT) return false;
+        expect(event, JsonParser.Event.KEY_NAME);
+        return true;
+    }
+
+    private static void expect(JsonParser.Event actual, JsonParser.Event expected) {
+        if (actual != expected) throw new JsonbException("Expected " + expected + " but found " + actual);
+    }
+
+    private static String readString(JsonParser parser) {
+        return stringValue(parser, parser.next());
+    }
+
+    private static String stringValue(JsonParser parser, JsonParser.Event event) {
+        switch (event) {
+            case VALUE_STRING:
+            case VALUE_NUMBER:
+                return parser.getString();
+            case VALUE_NULL:
+                return null;
+            default:
+                throw new JsonbException("Expected a string but found " + event);
+        }
+    }
+
+    private static Integer readInteger(JsonParser parser) {
+        JsonParser.Event event = parser.next();
+        try {
+            switch (event) {
+                case VALUE_NUMBER:
+                    if (!parser.isIntegralNumber()) throw new JsonbException("Expected an integer: " + parser.getString());
+                    return parser.getBigDecimal().intValueExact();
+                case VALUE_STRING:
+                    return Integer.parseInt(parser.getString());
+                case VALUE_NULL:
+                    return null;
+                default:
+                    throw new JsonbException("Expected an integer but found " + event);
+            }
+        } catch (ArithmeticException | NumberFormatException e) {
+            throw new JsonbException("Expected an integer: " + parser.getString(), e);
+        }
+    }
+
+    private static void skipValue(JsonParser parser) {
+        JsonParser.Event event = parser.next();
+        if (event == JsonParser.Event.START_OBJECT) {
+            parser.skipObject();
+        } else if (event == JsonParser.Event.START_ARRAY) {
+            parser.skipArray();
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package lk.ijse.dep9.cache;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Copies and outstanding loans of every book, so that availability is answered without scanning the loan history.
+ * A copy is reserved before the issue note is inserted and then either confirmed or cancelled. Periodic
+ * reconciliation with the database only touches entries that saw no activity while it was running.
+ */
+public class AvailabilityLedger {
+
+    private static final String RECONCILE_SQL = "SELECT b.isbn, b.copies, COUNT(ii.isbn) - COUNT(r.isbn) AS on_loan " +
+            "FROM book b " +
+            "LEFT OUTER JOIN issue_item ii ON ii.isbn = b.isbn " +
+            "LEFT OUTER JOIN `return` r ON r.issue_id = ii.issue_id AND r.isbn = ii.isbn " +
+            "GROUP BY b.isbn, b.copies";
+
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+    private volatile boolean ready;
+
+    public boolean isReady() {
+        return ready;
+    }
+
+    /* Books created outside of this application are unknown until the next reconciliation */
+    public boolean contains(String isbn) {
+        return entries.containsKey(isbn);
+    }
+
+    public boolean tryReserve(String isbn) {
+        Entry entry = entries.get(isbn);
+        if (entry == null) return false;
+        entry.modifications.incrementAndGet();
+        int onLoan;
+        do {
+            onLoan = entry.onLoan.get();
+            if (onLoan >= entry.copies) return false;
+        } while (!entry.onLoan.compareAndSet(onLoan, onLoan + 1));
+        entry.pending.incrementAndGet();
+        return true;
+    }
+
+    /* The issue item has been committed */
+    public void confirm(String isbn) {
+        Entry entry = entries.get(isbn);
+        if (entry == null) return;
+        entry.pending.decrementAndGet();
+        entry.modifications.incrementAndGet();
+    }
+
+    /* The issue item could not be committed */
+    public void cancel(String isbn) {
+        Entry entry = entries.get(isbn);
+        if (entry == null) return;
+        decrement(entry.onLoan);
+        entry.pending.decrementAndGet();
+        entry.modifications.incrementAndGet();
+    }
+
+    public void returned(String isbn) {
+        Entry entry = entries.get(isbn);
+        if (entry == null) return;
+        entry.modifications.incrementAndGet();
+        decrement(entry.onLoan);
+    }
+
+    public void setCopies(String isbn, int copies) {
+        Entry entry = entries.computeIfAbsent(isbn, key -> new Entry(copies, 0));
+        entry.modifications.incrementAndGet();
+        entry.copies = copies;
+    }
+
+    public void reconcile(DataSource pool) {
+        Map<String, Long> snapshot = new HashMap<>();
+        entries.forEach((isbn, entry) -> {
+            if (entry.pending.get() == 0) snapshot.put(isbn, entry.modifications.get());
+        });
+
+        try (Connection connection = pool.getConnection()) {
+            Statement stm = connection.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+            stm.setFetchSize(Integer.MIN_VALUE);
+            ResultSet rst = stm.executeQuery(RECONCILE_SQL);
+            while (rst.next()) {
+                String isbn = rst.getString("isbn");
+                int copies = rst.getInt("copies");
+                int onLoan = rst.getInt("on_loan");
+
+                Entry entry = entries.get(isbn);
+                if (entry == null) {
+                    entries.putIfAbsent(isbn, new Entry(copies, onLoan));
+                    continue;
+                }
+                Long modifications = snapshot.get(isbn);
+                if (modifications == null) continue;
+
+                /* Anything that happened after the snapshot may or may not be part of the result */
+                int current = entry.onLoan.get();
+                if (entry.pending.get() != 0 || entry.modifications.get() != modifications) continue;
+                entry.copies = copies;
+                entry.onLoan.compareAndSet(current, onLoan);
+            }
+            ready = true;
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static void decrement(AtomicInteger counter) {
+        int current;
+        do {
+            current = counter.get();
+            if (current == 0) return;
+        } while (!counter.compareAndSet(current, current - 1));
+    }
+
+    private static class Entry {
+        private volatile int copies;
+        private final AtomicInteger onLoan;
+        private final AtomicInteger pending = new AtomicInteger();
+        private final AtomicLong modifications = new AtomicLong();
+
+        Entry(int copies, int onLoan) {
+            this.copies = copies;
+            this.onLoan = new AtomicInteger(onLoan);
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package lk.ijse.dep9.cache;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded read-through cache with LRU eviction and a time to live.
+ * Lookups that found nothing are cached too (for a shorter time), so repeated 404s don't reach the database.
+ * The cache is split into independently locked segments to keep lock hold times short under concurrency.
+ */
+public class EntityCache<K, V> {
+
+    private static final int SEGMENTS = 16;
+    private static final Object NOT_FOUND = new Object();
+
+    private final List<Segment> segments = new ArrayList<>(SEGMENTS);
+    private final long ttlNanos;
+    private final long negativeTtlNanos;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder negativeHits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    @FunctionalInterface
+    public interface Loader<K, V> {
+        /* Returns null if there is no such entity */
+        V load(K key) throws SQLException;
+    }
+
+    public EntityCache(int maxEntries, long ttl, long negativeTtl, TimeUnit unit) {
+        this.ttlNanos = unit.toNanos(ttl);
+        this.negativeTtlNanos = unit.toNanos(negativeTtl);
+        int segmentCapacity = Math.max(maxEntries / SEGMENTS, 1);
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments.add(new Segment(segmentCapacity));
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    public V get(K key, Loader<K, V> loader) throws SQLException {
+        Segment segment = segmentFor(key);
+        long version;
+        synchronized (segment) {
+            Entry entry = segment.map.get(key);
+            if (entry != null) {
+                if (System.nanoTime() < entry.expiresAt) {
+                    if (entry.value == NOT_FOUND) {
+                        negativeHits.increment();
+                        return null;
+                    }
+                    hits.increment();
+                    return (V) entry.value;
+                }
+                segment.map.remove(key);
+                evictions.increment();
+            }
+            version = segment.version;
+        }
+
+        misses.increment();
+        V value = loader.load(key);
+
+        synchronized (segment) {
+            /* Don't cache what we read if the key was invalidated while we were loading it */
+            if (segment.version == version) {
+                long ttl = value == null ? negativeTtlNanos : ttlNanos;
+                segment.map.put(key, new Entry(value == null ? NOT_FOUND : value, System.nanoTime() + ttl));
+            }
+        }
+        return value;
+    }
+
+    /* The cached entity without loading it, null if it isn't cached or is cached as missing. Only a found entity counts as a lookup */
+    @SuppressWarnings("unchecked")
+    public V getIfPresent(K key) {
+        Segment segment = segmentFor(key);
+        synchronized (segment) {
+            Entry entry = segment.map.get(key);
+            if (entry == null || entry.value == NOT_FOUND || System.nanoTime() >= entry.expiresAt) return null;
+            hits.increment();
+            return (V) entry.value;
+        }
+    }
+
+    public void invalidate(K key) {
+        Segment segment = segmentFor(key);
+        synchronized (segment) {
+            segment.map.remove(key);
+            segment.version++;
+        }
+    }
+
+    public void invalidateAll() {
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                segment.map.clear();
+                segment.version++;
+            }
+        }
+    }
+
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.map.size();
+            }
+        }
+        return size;
+    }
+
+    /* Lookups that found a cached entity, the ones that found it cached as missing are negative hits */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getNegativeHits() {
+        return negativeHits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    public double getHitRatio() {
+        long hits = this.hits.sum() + negativeHits.sum();
+        long total = hits + misses.sum();
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    private Segment segmentFor(K key) {
+        int h = key.hashCode();
+        return segments.get((h ^ (h >>> 16)) & (SEGMENTS - 1));
+    }
+
+    private class Segment {
+        private final LinkedHashMap<K, Entry> map;
+        private long version;
+
+        Segment(int capacity) {
+            map = new LinkedHashMap<>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<K, Entry> eldest) {
+                    if (size() <= capacity) return false;
+                    evictions.increment();
+                    return true;
+                }
+            };
+        }
+    }
+
+    private static class Entry {
+        private final Object value;
+        private final long expiresAt;
+
+        Entry(Object value, long expiresAt) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
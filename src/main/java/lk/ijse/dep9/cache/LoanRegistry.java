@@ -0,0 +1,94 @@
+package lk.ijse.dep9.cache;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The ISBNs each member currently has on loan, loaded on first use and kept current by the issue and return paths.
+ * An issue holds the lock of its member from the limit check until its commit, so concurrent issues for the same
+ * member can not exceed the limit together. Loans are reloaded after a while to pick up changes made elsewhere.
+ */
+public class LoanRegistry {
+
+    private static final String LOAD_SQL = "SELECT ii.isbn FROM issue_note `in` " +
+            "INNER JOIN issue_item ii ON `in`.id = ii.issue_id " +
+            "LEFT OUTER JOIN `return` r ON ii.issue_id = r.issue_id AND ii.isbn = r.isbn " +
+            "WHERE r.date IS NULL AND `in`.member_id = ?";
+
+    private final ConcurrentHashMap<String, MemberLoans> members = new ConcurrentHashMap<>();
+    private final long reloadAfterNanos;
+
+    public LoanRegistry(long reloadAfter, TimeUnit unit) {
+        this.reloadAfterNanos = unit.toNanos(reloadAfter);
+    }
+
+    /* The caller must unlock the returned loans */
+    public MemberLoans lock(String memberId, Connection connection) throws SQLException {
+        MemberLoans loans = members.computeIfAbsent(memberId.toLowerCase(), key -> new MemberLoans());
+        loans.lock.lock();
+        try {
+            if (!loans.loaded || System.nanoTime() - loans.loadedAt > reloadAfterNanos) {
+                loans.load(memberId, connection);
+            }
+        } catch (SQLException | RuntimeException e) {
+            loans.lock.unlock();
+            throw e;
+        }
+        return loans;
+    }
+
+    public void returned(String memberId, String isbn) {
+        MemberLoans loans = members.get(memberId.toLowerCase());
+        if (loans == null) return;
+        loans.lock.lock();
+        try {
+            loans.isbns.remove(isbn);
+        } finally {
+            loans.lock.unlock();
+        }
+    }
+
+    public static class MemberLoans {
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Set<String> isbns = new HashSet<>();
+        private boolean loaded;
+        private long loadedAt;
+
+        private void load(String memberId, Connection connection) throws SQLException {
+            try (PreparedStatement stm = connection.prepareStatement(LOAD_SQL)) {
+                stm.setString(1, memberId);
+                ResultSet rst = stm.executeQuery();
+                isbns.clear();
+                while (rst.next()) {
+                    isbns.add(rst.getString("isbn"));
+                }
+            }
+            loaded = true;
+            loadedAt = System.nanoTime();
+        }
+
+        public boolean contains(String isbn) {
+            return isbns.contains(isbn);
+        }
+
+        public int count() {
+            return isbns.size();
+        }
+
+        public void addAll(Collection<String> isbns) {
+            this.isbns.addAll(isbns);
+        }
+
+        public void unlock() {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package lk.ijse.dep9.cache;
+
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Short lived cache of search result counts keyed by the normalized search query.
+ * The whole cache is dropped whenever the underlying table changes.
+ */
+public class SearchCountCache {
+
+    private final long ttlNanos;
+    private final int maxEntries;
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+
+    public SearchCountCache(long ttl, TimeUnit unit, int maxEntries) {
+        this.ttlNanos = unit.toNanos(ttl);
+        this.maxEntries = maxEntries;
+    }
+
+    /* The columns use a case-insensitive collation, so queries differing only in case share a count */
+    private static String normalize(String query) {
+        return query.toLowerCase(Locale.ROOT);
+    }
+
+    public Long get(String query) {
+        Entry entry = entries.get(normalize(query));
+        if (entry == null) return null;
+        if (System.nanoTime() - entry.createdAt > ttlNanos) {
+            entries.remove(normalize(query), entry);
+            return null;
+        }
+        return entry.count;
+    }
+
+    public void put(String query, long count) {
+        if (entries.size() >= maxEntries) {
+            long now = System.nanoTime();
+            entries.values().removeIf(entry -> now - entry.createdAt > ttlNanos);
+            if (entries.size() >= maxEntries) entries.clear();
+        }
+        entries.put(normalize(query), new Entry(count, System.nanoTime()));
+    }
+
+    public void invalidateAll() {
+        entries.clear();
+    }
+
+    private static class Entry {
+        private final long count;
+        private final long createdAt;
+
+        Entry(long count, long createdAt) {
+            this.count = count;
+            this.createdAt = createdAt;
+        }
+    }
+}
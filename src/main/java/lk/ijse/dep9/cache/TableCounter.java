@@ -0,0 +1,64 @@
+package lk.ijse.dep9.cache;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-memory row count of a table. The count is adjusted by the insert and delete paths
+ * and periodically resynchronized from the database to correct any drift.
+ */
+public class TableCounter {
+
+    private static final long UNKNOWN = -1;
+
+    private final String countSql;
+    private final AtomicLong count = new AtomicLong(UNKNOWN);
+
+    public TableCounter(String countSql) {
+        this.countSql = countSql;
+    }
+
+    /* Falls back to the database only until the first successful sync */
+    public long get(Connection connection) throws SQLException {
+        long current = count.get();
+        return current == UNKNOWN ? resync(connection) : current;
+    }
+
+    public void increment() {
+        add(1);
+    }
+
+    public void decrement() {
+        add(-1);
+    }
+
+    private void add(long delta) {
+        long current;
+        do {
+            current = count.get();
+            if (current == UNKNOWN) return;
+        } while (!count.compareAndSet(current, Math.max(current + delta, 0)));
+    }
+
+    public long resync(Connection connection) throws SQLException {
+        try (Statement stm = connection.createStatement()) {
+            ResultSet rst = stm.executeQuery(countSql);
+            rst.next();
+            long total = rst.getLong(1);
+            count.set(total);
+            return total;
+        }
+    }
+
+    public void resync(DataSource pool) {
+        try (Connection connection = pool.getConnection()) {
+            resync(connection);
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+}
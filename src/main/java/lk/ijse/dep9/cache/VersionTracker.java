@@ -0,0 +1,51 @@
+package lk.ijse.dep9.cache;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tracks a version for a table and for each of its rows, bumped by every write, and turns them into strong ETags.
+ * Tags embed the start time of this instance, so tags issued before a restart never match again.
+ */
+public class VersionTracker {
+
+    private final String prefix;
+    private final AtomicLong tableVersion = new AtomicLong();
+    private final ConcurrentHashMap<String, Long> rowVersions = new ConcurrentHashMap<>();
+
+    public VersionTracker(String name) {
+        this.prefix = name + "-" + Long.toString(System.currentTimeMillis(), 36) + "-";
+    }
+
+    public String tableTag() {
+        return "\"" + prefix + tableVersion.get() + "\"";
+    }
+
+    public String rowTag(String key) {
+        return "\"" + prefix + "r" + rowVersions.getOrDefault(key, 0L) + "\"";
+    }
+
+    /* A write to a row changes the tag of that row and of every listing of the table */
+    public void bump(String key) {
+        long version = tableVersion.incrementAndGet();
+        if (key != null) rowVersions.put(key, version);
+    }
+
+    /* If-None-Match uses the weak comparison, so W/ prefixes and the suffix of a compressed body are ignored */
+    public static boolean matches(String ifNoneMatch, String etag) {
+        if (ifNoneMatch == null) return false;
+        for (String candidate : ifNoneMatch.split(",")) {
+            candidate = candidate.trim();
+            if (candidate.startsWith("W/")) candidate = candidate.substring(2);
+            if (candidate.endsWith("-gzip\"")) candidate = candidate.substring(0, candidate.length() - 6) + "\"";
+            if (candidate.endsWith("-deflate\"")) candidate = candidate.substring(0, candidate.length() - 9) + "\"";
+            if (candidate.equals(etag)) return true;
+        }
+        return false;
+    }
+
+    /* Matches any current representation, whether there is one is up to the caller */
+    public static boolean isWildcard(String ifNoneMatch) {
+        return ifNoneMatch != null && ifNoneMatch.trim().equals("*");
+    }
+}
@@ -1,55 +1,503 @@
 package lk.ijse.dep9.db;
 
+import javax.sql.DataSource;
+import java.io.PrintWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
 import java.sql.Connection;
 import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.SQLTransientConnectionException;
+import java.sql.Statement;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
-public class ConnectionPool {
+/**
+ * A JDBC connection pool that can be used wherever a {@link DataSource} is expected.
+ * Idle connections are kept in a lock-free deque and the pool size is enforced with a semaphore,
+ * so borrowing and releasing never contend on a shared monitor.
+ * Connections handed out are proxies; calling {@code close()} returns them to the pool.
+ * Each pooled connection keeps an LRU cache of its prepared statements, which are handed back to the cache
+ * (instead of being closed) when the statement or the connection is closed. Any other statement is closed along
+ * with the connection, and a connection whose statements can't be closed is discarded.
+ */
+public class ConnectionPool implements DataSource, AutoCloseable {
 
-    private final List<Connection> pool = new ArrayList<>();
-    private final List<Connection> consumerPool = new ArrayList<>();
+    /* Used by the convenience constructor and by ConnectionPoolFactory for whatever the resource leaves out */
+    public static final String DEFAULT_URL = "jdbc:mysql://localhost:3306/dep9_lms?useServerPrepStmts=true&rewriteBatchedStatements=true";
+    public static final String DEFAULT_USERNAME = "root";
+    public static final String DEFAULT_PASSWORD = "mysql";
+
+    private static final Logger logger = Logger.getLogger(ConnectionPool.class.getName());
+
+    private final String url;
+    private final String username;
+    private final String password;
     private final int poolSize;
+    private final long acquireTimeoutMillis;
+    private final long validationIntervalMillis;
+    private final long leakDetectionThresholdMillis;
+    private final int statementCacheSize;
+
+    private final ConcurrentLinkedDeque<PooledConnection> idle = new ConcurrentLinkedDeque<>();
+    private final Set<Lease> leases = ConcurrentHashMap.newKeySet();
+    private final Semaphore permits;
+    private final ScheduledExecutorService housekeeper;
+    private volatile boolean closed;
+
+    /* Statistics */
+    private final LongAdder acquireCount = new LongAdder();
+    private final LongAdder acquireTimeoutCount = new LongAdder();
+    private final LongAdder totalWaitNanos = new LongAdder();
+    private final LongAdder totalBorrowNanos = new LongAdder();
+    private final LongAdder createdCount = new LongAdder();
+    private final LongAdder validationFailureCount = new LongAdder();
+    private final LongAdder leakCount = new LongAdder();
+    private final LongAdder statementCacheHits = new LongAdder();
+    private final LongAdder statementCacheMisses = new LongAdder();
+    private final LongAdder statementCacheEvictions = new LongAdder();
 
     public ConnectionPool(int poolSize) {
+        this(DEFAULT_URL, DEFAULT_USERNAME, DEFAULT_PASSWORD, poolSize, 30_000, 500, 0, 64);
+    }
+
+    public ConnectionPool(String url, String username, String password, int poolSize,
+                          long acquireTimeoutMillis, long validationIntervalMillis, long leakDetectionThresholdMillis,
+                          int statementCacheSize) {
+        if (poolSize < 1) throw new IllegalArgumentException("Pool size should be at least 1");
+        this.url = url;
+        this.username = username;
+        this.password = password;
         this.poolSize = poolSize;
+        this.acquireTimeoutMillis = acquireTimeoutMillis;
+        this.validationIntervalMillis = validationIntervalMillis;
+        this.leakDetectionThresholdMillis = leakDetectionThresholdMillis;
+        this.statementCacheSize = statementCacheSize;
+        this.permits = new Semaphore(poolSize);
+
         try {
-            Class.forName("com.mysql.cj.jdbc.Driver");
+            if (url.startsWith("jdbc:mysql:")) Class.forName("com.mysql.cj.jdbc.Driver");
 
             for (int i = 0; i < poolSize; i++) {
-                Connection connection = DriverManager.getConnection("jdbc:mysql://localhost:3306/dep9_lms", "root", "mysql");
-                pool.add(connection);
+                idle.offerLast(newPooledConnection());
             }
-
         } catch (ClassNotFoundException | SQLException e) {
+            idle.forEach(PooledConnection::closePhysical);
             throw new RuntimeException(e);
         }
+
+        if (leakDetectionThresholdMillis > 0) {
+            housekeeper = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "connection-pool-housekeeper");
+                t.setDaemon(true);
+                return t;
+            });
+            long period = Math.max(leakDetectionThresholdMillis / 2, 1000);
+            housekeeper.scheduleAtFixedRate(this::detectLeaks, period, period, TimeUnit.MILLISECONDS);
+        } else {
+            housekeeper = null;
+        }
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        if (closed) throw new SQLException("Connection pool has been closed");
+
+        long start = System.nanoTime();
+        try {
+            if (!permits.tryAcquire(acquireTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                acquireTimeoutCount.increment();
+                throw new SQLTransientConnectionException(
+                        "Timed out after " + acquireTimeoutMillis + "ms while waiting for a connection");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a connection", e);
+        }
+        long acquiredAt = System.nanoTime();
+        totalWaitNanos.add(acquiredAt - start);
+        acquireCount.increment();
+
+        try {
+            PooledConnection pooledConnection;
+            while ((pooledConnection = idle.pollFirst()) != null) {
+                if (isAlive(pooledConnection)) break;
+                validationFailureCount.increment();
+                pooledConnection.closePhysical();
+            }
+            if (pooledConnection == null) pooledConnection = newPooledConnection();
+
+            Lease lease = new Lease(pooledConnection, acquiredAt,
+                    leakDetectionThresholdMillis > 0 ? new Exception("Connection was borrowed here") : null);
+            leases.add(lease);
+            lease.proxy = (Connection) Proxy.newProxyInstance(ConnectionPool.class.getClassLoader(),
+                    new Class<?>[]{Connection.class}, lease);
+            return lease.proxy;
+        } catch (SQLException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    public void releaseConnection(Connection connection) {
+        try {
+            connection.close();
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public void releaseAllConnections() {
+        for (Lease lease : leases) {
+            lease.release();
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        if (housekeeper != null) housekeeper.shutdownNow();
+        releaseAllConnections();
+        PooledConnection pooledConnection;
+        while ((pooledConnection = idle.pollFirst()) != null) {
+            pooledConnection.closePhysical();
+        }
+    }
+
+    private PooledConnection newPooledConnection() throws SQLException {
+        Connection connection = DriverManager.getConnection(url, username, password);
+        createdCount.increment();
+        return new PooledConnection(connection, new StatementCache(statementCacheSize,
+                statementCacheHits, statementCacheMisses, statementCacheEvictions));
+    }
+
+    /* Connections used within the validation interval are trusted without a round-trip to the server */
+    private boolean isAlive(PooledConnection pooledConnection) {
+        if (System.nanoTime() - pooledConnection.lastUsed <
+                TimeUnit.MILLISECONDS.toNanos(validationIntervalMillis)) {
+            return true;
+        }
+        try {
+            return pooledConnection.connection.isValid(5);
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    private void detectLeaks() {
+        long now = System.nanoTime();
+        for (Lease lease : leases) {
+            if (!lease.leakReported && now - lease.acquiredAt >
+                    TimeUnit.MILLISECONDS.toNanos(leakDetectionThresholdMillis)) {
+                lease.leakReported = true;
+                leakCount.increment();
+                logger.log(Level.WARNING, "Possible connection leak: a connection has been in use for more than " +
+                        leakDetectionThresholdMillis + "ms", lease.borrowedAt);
+            }
+        }
+    }
+
+    public int getPoolSize() {
+        return poolSize;
+    }
+
+    public int getActiveConnections() {
+        return leases.size();
+    }
+
+    public int getIdleConnections() {
+        return idle.size();
+    }
+
+    public int getPendingThreads() {
+        return permits.getQueueLength();
+    }
+
+    public double getUtilization() {
+        return (double) leases.size() / poolSize;
+    }
+
+    public long getAcquireCount() {
+        return acquireCount.sum();
+    }
+
+    public long getAcquireTimeoutCount() {
+        return acquireTimeoutCount.sum();
+    }
+
+    public long getTotalWaitNanos() {
+        return totalWaitNanos.sum();
+    }
+
+    public long getTotalBorrowNanos() {
+        return totalBorrowNanos.sum();
+    }
+
+    public long getCreatedCount() {
+        return createdCount.sum();
     }
 
-    public synchronized Connection getConnection() {
-        while (pool.isEmpty()){
+    public long getValidationFailureCount() {
+        return validationFailureCount.sum();
+    }
+
+    public long getLeakCount() {
+        return leakCount.sum();
+    }
+
+    public long getStatementCacheHits() {
+        return statementCacheHits.sum();
+    }
+
+    public long getStatementCacheMisses() {
+        return statementCacheMisses.sum();
+    }
+
+    public long getStatementCacheEvictions() {
+        return statementCacheEvictions.sum();
+    }
+
+    @Override
+    public Connection getConnection(String username, String password) throws SQLException {
+        throw new SQLFeatureNotSupportedException("The pool only hands out connections of the configured user");
+    }
+
+    @Override
+    public PrintWriter getLogWriter() {
+        return null;
+    }
+
+    @Override
+    public void setLogWriter(PrintWriter out) {
+    }
+
+    @Override
+    public void setLoginTimeout(int seconds) {
+    }
+
+    @Override
+    public int getLoginTimeout() {
+        return 0;
+    }
+
+    @Override
+    public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+        throw new SQLFeatureNotSupportedException();
+    }
+
+    @Override
+    public <T> T unwrap(Class<T> iface) throws SQLException {
+        if (iface.isInstance(this)) return iface.cast(this);
+        throw new SQLException("Not a wrapper for " + iface.getName());
+    }
+
+    @Override
+    public boolean isWrapperFor(Class<?> iface) {
+        return iface.isInstance(this);
+    }
+
+    private static class PooledConnection {
+        private final Connection connection;
+        private final StatementCache statementCache;
+        private volatile long lastUsed = System.nanoTime();
+
+        PooledConnection(Connection connection, StatementCache statementCache) {
+            this.connection = connection;
+            this.statementCache = statementCache;
+        }
+
+        void closePhysical() {
+            statementCache.closeAll();
             try {
-                wait();
-            } catch (InterruptedException e) {
-                throw new RuntimeException(e);
+                connection.close();
+            } catch (SQLException ignored) {
             }
         }
-        Connection connection = pool.get(0);
-        consumerPool.add(connection);
-        pool.remove(connection);
-        return connection;
     }
 
-    public synchronized void releaseConnection(Connection connection) {
-        pool.add(connection);
-        consumerPool.remove(connection);
-        notify();
+    /* One lease per borrow, so a stale proxy can never touch a connection that is now used by someone else */
+    private class Lease implements InvocationHandler {
+        private final PooledConnection pooledConnection;
+        private final long acquiredAt;
+        private final Exception borrowedAt;
+        private final AtomicBoolean released = new AtomicBoolean();
+        private final List<CachedStatement> statements = new ArrayList<>();
+        /* Statements that bypass the cache, a result still streaming from one of them would block the next borrower */
+        private final List<Statement> uncached = new ArrayList<>();
+        private volatile boolean leakReported;
+        private Connection proxy;
+
+        Lease(PooledConnection pooledConnection, long acquiredAt, Exception borrowedAt) {
+            this.pooledConnection = pooledConnection;
+            this.acquiredAt = acquiredAt;
+            this.borrowedAt = borrowedAt;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "close":
+                    release();
+                    return null;
+                case "isClosed":
+                    return released.get() || pooledConnection.connection.isClosed();
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return "Pooled" + pooledConnection.connection;
+            }
+            if (released.get()) throw new SQLException("Connection has already been returned to the pool");
+            if (method.getName().equals("prepareStatement") && (args.length == 1 ||
+                    (args.length == 2 && method.getParameterTypes()[1] == int.class))) {
+                return prepareStatement((String) args[0], args.length == 1 ? Statement.NO_GENERATED_KEYS : (int) args[1]);
+            }
+            Object result;
+            try {
+                result = method.invoke(pooledConnection.connection, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+            if (result instanceof Statement) {
+                synchronized (statements) {
+                    uncached.add((Statement) result);
+                }
+            }
+            return result;
+        }
+
+        private PreparedStatement prepareStatement(String sql, int autoGeneratedKeys) throws SQLException {
+            String key = autoGeneratedKeys == Statement.NO_GENERATED_KEYS ? sql : "#" + autoGeneratedKeys + ":" + sql;
+            PreparedStatement stm = pooledConnection.statementCache.take(key);
+            if (stm == null || stm.isClosed()) {
+                stm = pooledConnection.connection.prepareStatement(sql, autoGeneratedKeys);
+            }
+            CachedStatement cachedStatement = new CachedStatement(this, key, stm);
+            synchronized (statements) {
+                statements.add(cachedStatement);
+            }
+            return (PreparedStatement) Proxy.newProxyInstance(ConnectionPool.class.getClassLoader(),
+                    new Class<?>[]{PreparedStatement.class}, cachedStatement);
+        }
+
+        void release() {
+            if (!released.compareAndSet(false, true)) return;
+            leases.remove(this);
+            boolean drained = true;
+            synchronized (statements) {
+                for (CachedStatement stm : statements) {
+                    if (!stm.checkIn()) drained = false;
+                }
+                statements.clear();
+                for (Statement stm : uncached) {
+                    try {
+                        stm.close();
+                    } catch (SQLException e) {
+                        drained = false;
+                    }
+                }
+                uncached.clear();
+            }
+            long now = System.nanoTime();
+            totalBorrowNanos.add(now - acquiredAt);
+
+            Connection connection = pooledConnection.connection;
+            boolean reusable;
+            try {
+                if (!connection.getAutoCommit()) {
+                    connection.rollback();
+                    connection.setAutoCommit(true);
+                }
+                reusable = drained && !closed && !connection.isClosed();
+            } catch (SQLException e) {
+                reusable = false;
+            }
+
+            if (reusable) {
+                pooledConnection.lastUsed = now;
+                idle.offerFirst(pooledConnection);
+            } else {
+                pooledConnection.closePhysical();
+            }
+            permits.release();
+        }
     }
 
-    public synchronized void releaseAllConnections() {
-        pool.addAll(consumerPool);
-        consumerPool.clear();
-        notifyAll();
+    /* Closing the statement hands it back to the connection's cache instead of closing it on the server */
+    private static class CachedStatement implements InvocationHandler {
+        private final Lease lease;
+        private final String key;
+        private final PreparedStatement statement;
+        private final AtomicBoolean closed = new AtomicBoolean();
+
+        CachedStatement(Lease lease, String key, PreparedStatement statement) {
+            this.lease = lease;
+            this.key = key;
+            this.statement = statement;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "close":
+                    checkIn();
+                    return null;
+                case "isClosed":
+                    return closed.get() || statement.isClosed();
+                case "getConnection":
+                    return lease.proxy;
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return "Cached" + statement;
+            }
+            if (closed.get()) throw new SQLException("Statement has already been closed");
+            try {
+                return method.invoke(statement, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        }
+
+        /* Returns false if the statement, or a result still open on it, couldn't be closed cleanly */
+        boolean checkIn() {
+            if (!closed.compareAndSet(false, true)) return true;
+            StatementCache cache = lease.pooledConnection.statementCache;
+            try {
+                if (statement.isClosed()) return true;
+                ResultSet rst = statement.getResultSet();
+                if (rst != null) rst.close();
+                statement.clearParameters();
+                statement.clearBatch();
+                statement.setFetchSize(0);
+                cache.put(key, statement);
+                return true;
+            } catch (SQLException e) {
+                try {
+                    statement.close();
+                } catch (SQLException ignored) {
+                }
+                return false;
+            }
+        }
     }
 }
@@ -0,0 +1,45 @@
+package lk.ijse.dep9.db;
+
+import javax.naming.Context;
+import javax.naming.Name;
+import javax.naming.RefAddr;
+import javax.naming.Reference;
+import javax.naming.spi.ObjectFactory;
+import java.util.Hashtable;
+
+/**
+ * JNDI factory so that the container can bind a {@link ConnectionPool} as the application's DataSource.
+ * <pre>
+ * &lt;Resource name="jdbc/dep9-lms" auth="Container" type="javax.sql.DataSource"
+ *           factory="lk.ijse.dep9.db.ConnectionPoolFactory" closeMethod="close"
+ *           url="jdbc:mysql://localhost:3306/dep9_lms?useServerPrepStmts=true&amp;amp;rewriteBatchedStatements=true" username="root" password="mysql"
+ *           poolSize="10" acquireTimeout="30000" validationInterval="500" leakDetectionThreshold="60000"
+ *           statementCacheSize="64"/&gt;
+ * </pre>
+ */
+public class ConnectionPoolFactory implements ObjectFactory {
+
+    @Override
+    public Object getObjectInstance(Object obj, Name name, Context nameCtx, Hashtable<?, ?> environment) {
+        if (!(obj instanceof Reference)) return null;
+        Reference reference = (Reference) obj;
+
+        String poolSize = property(reference, "poolSize", null);
+        if (poolSize == null) poolSize = property(reference, "maxTotal", "10");
+
+        return new ConnectionPool(
+                property(reference, "url", ConnectionPool.DEFAULT_URL),
+                property(reference, "username", ConnectionPool.DEFAULT_USERNAME),
+                property(reference, "password", ConnectionPool.DEFAULT_PASSWORD),
+                Integer.parseInt(poolSize),
+                Long.parseLong(property(reference, "acquireTimeout", "30000")),
+                Long.parseLong(property(reference, "validationInterval", "500")),
+                Long.parseLong(property(reference, "leakDetectionThreshold", "0")),
+                Integer.parseInt(property(reference, "statementCacheSize", "64")));
+    }
+
+    private static String property(Reference reference, String name, String defaultValue) {
+        RefAddr refAddr = reference.get(name);
+        return refAddr == null || refAddr.getContent() == null ? defaultValue : refAddr.getContent().toString();
+    }
+}
@@ -0,0 +1,29 @@
+package lk.ijse.dep9.db;
+
+import java.util.Collections;
+
+/**
+ * Placeholders for IN-lists, padded to one of a few fixed sizes so that only a handful of distinct statements reach
+ * the server and the statement cache. The caller binds its values and then repeats the last one in the padding,
+ * which doesn't change what the IN matches.
+ */
+public final class InList {
+
+    private static final int[] SIZES = {1, 4, 16, 64, 500};
+
+    private InList() {
+    }
+
+    /* The number of slots for the given number of values; more than the largest size isn't padded */
+    public static int slots(int values) {
+        for (int size : SIZES) {
+            if (values <= size) return size;
+        }
+        return values;
+    }
+
+    /* The placeholder, "?" or a row constructor like "(?, ?)", repeated for the slots of the given number of values */
+    public static String placeholders(int values, String placeholder) {
+        return String.join(", ", Collections.nCopies(slots(values), placeholder));
+    }
+}
@@ -0,0 +1,395 @@
+package lk.ijse.dep9.db;
+
+import lk.ijse.dep9.metrics.Histogram;
+import lk.ijse.dep9.metrics.PrometheusWriter;
+import lk.ijse.dep9.metrics.ServerTiming;
+
+import javax.sql.DataSource;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+/**
+ * Times everything the application asks of another DataSource: getting a connection, executing each statement and
+ * iterating over its results, grouped by the SQL text with literals and parameter lists collapsed. Statements that
+ * are slower than the threshold of the {@link SlowQueryLog} are handed to it together with their bind parameters.
+ */
+public class InstrumentedDataSource implements DataSource {
+
+    /* Dynamic SQL must not be able to grow the metrics without bounds */
+    private static final int MAX_STATEMENTS = 500;
+    private static final int MAX_SQL_TEXTS = 2000;
+
+    private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+    private static final Pattern LITERAL = Pattern.compile("'(?:[^'\\\\]|\\\\.|'')*'|\\b\\d+(?:\\.\\d+)?\\b");
+    private static final Pattern PARAMETER_LIST = Pattern.compile("\\?(?:\\s*,\\s*\\?)+");
+    private static final Pattern ROW_LIST = Pattern.compile("\\(\\?, \\.\\.\\.\\)(?:\\s*,\\s*\\(\\?, \\.\\.\\.\\))+");
+
+    private final DataSource dataSource;
+    private final SlowQueryLog slowQueryLog;
+    private final Histogram acquireTime = new Histogram();
+    private final LongAdder acquireFailures = new LongAdder();
+    private final Map<String, SqlMetrics> bySqlText = new ConcurrentHashMap<>();
+    private final Map<String, SqlMetrics> byStatement = new ConcurrentHashMap<>();
+    private final SqlMetrics otherStatements = new SqlMetrics("other");
+
+    private static class SqlMetrics {
+        private final String sql;
+        private final Histogram execute = new Histogram();
+        private final Histogram fetch = new Histogram();
+        private final LongAdder rows = new LongAdder();
+        private final LongAdder errors = new LongAdder();
+
+        SqlMetrics(String sql) {
+            this.sql = sql;
+        }
+    }
+
+    /* slowQueryLog may be null */
+    public InstrumentedDataSource(DataSource dataSource, SlowQueryLog slowQueryLog) {
+        this.dataSource = dataSource;
+        this.slowQueryLog = slowQueryLog;
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        long start = System.nanoTime();
+        try {
+            return instrument(dataSource.getConnection());
+        } catch (SQLException | RuntimeException e) {
+            acquireFailures.increment();
+            throw e;
+        } finally {
+            long nanos = System.nanoTime() - start;
+            acquireTime.record(nanos);
+            ServerTiming.add(ServerTiming.Phase.POOL, nanos);
+        }
+    }
+
+    @Override
+    public Connection getConnection(String username, String password) throws SQLException {
+        long start = System.nanoTime();
+        try {
+            return instrument(dataSource.getConnection(username, password));
+        } catch (SQLException | RuntimeException e) {
+            acquireFailures.increment();
+            throw e;
+        } finally {
+            long nanos = System.nanoTime() - start;
+            acquireTime.record(nanos);
+            ServerTiming.add(ServerTiming.Phase.POOL, nanos);
+        }
+    }
+
+    static String normalize(String sql) {
+        String normalized = WHITESPACE.matcher(sql.trim()).replaceAll(" ");
+        normalized = LITERAL.matcher(normalized).replaceAll("?");
+        normalized = PARAMETER_LIST.matcher(normalized).replaceAll("?, ...");
+        return ROW_LIST.matcher(normalized).replaceAll("(?, ...), ...");
+    }
+
+    private SqlMetrics metrics(String sql) {
+        SqlMetrics metrics = bySqlText.get(sql);
+        if (metrics != null) return metrics;
+
+        String normalized = normalize(sql);
+        metrics = byStatement.get(normalized);
+        if (metrics == null) {
+            metrics = byStatement.size() < MAX_STATEMENTS ?
+                    byStatement.computeIfAbsent(normalized, SqlMetrics::new) : otherStatements;
+        }
+        if (bySqlText.size() < MAX_SQL_TEXTS) bySqlText.putIfAbsent(sql, metrics);
+        return metrics;
+    }
+
+    private Connection instrument(Connection connection) {
+        ConnectionHandler handler = new ConnectionHandler(connection);
+        handler.proxy = (Connection) Proxy.newProxyInstance(InstrumentedDataSource.class.getClassLoader(),
+                new Class<?>[]{Connection.class}, handler);
+        return handler.proxy;
+    }
+
+    private class ConnectionHandler implements InvocationHandler {
+        private final Connection connection;
+        private Connection proxy;
+
+        ConnectionHandler(Connection connection) {
+            this.connection = connection;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+            }
+            Object result;
+            try {
+                result = method.invoke(connection, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+            switch (method.getName()) {
+                case "createStatement":
+                    return statement((Statement) result, Statement.class, null);
+                case "prepareStatement":
+                    return statement((Statement) result, PreparedStatement.class, (String) args[0]);
+                case "prepareCall":
+                    return statement((Statement) result, CallableStatement.class, (String) args[0]);
+                default:
+                    return result;
+            }
+        }
+
+        private Object statement(Statement statement, Class<?> type, String sql) {
+            StatementHandler handler = new StatementHandler(statement, proxy, sql);
+            handler.proxy = Proxy.newProxyInstance(InstrumentedDataSource.class.getClassLoader(),
+                    new Class<?>[]{type}, handler);
+            return handler.proxy;
+        }
+    }
+
+    private class StatementHandler implements InvocationHandler {
+        private final Statement statement;
+        private final Connection connection;
+        private final String sql;
+        private Object proxy;
+        private Object[] parameters;
+        private ResultSetHandler resultSet;
+
+        StatementHandler(Statement statement, Connection connection, String sql) {
+            this.statement = statement;
+            this.connection = connection;
+            this.sql = sql;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            if (name.startsWith("execute")) return execute(method, args);
+
+            /* Parameter setters are the only setters that take an index and a value */
+            if (sql != null && name.startsWith("set") && args != null && args.length >= 2 && args[0] instanceof Integer) {
+                bind((Integer) args[0], args[1]);
+            }
+            switch (name) {
+                case "clearParameters":
+                    parameters = null;
+                    break;
+                case "close":
+                    finishResultSet();
+                    break;
+                case "getConnection":
+                    return connection;
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+            }
+            try {
+                return method.invoke(statement, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        }
+
+        private void bind(int index, Object value) {
+            if (index < 1) return;
+            if (parameters == null) {
+                parameters = new Object[Math.max(index, 8)];
+            } else if (index > parameters.length) {
+                parameters = Arrays.copyOf(parameters, Math.max(index, parameters.length * 2));
+            }
+            parameters[index - 1] = value;
+        }
+
+        private Object execute(Method method, Object[] args) throws Throwable {
+            String executed = sql != null ? sql : args != null && args.length > 0 && args[0] instanceof String ?
+                    (String) args[0] : "batch";
+            SqlMetrics metrics = metrics(executed);
+            finishResultSet();
+
+            long start = System.nanoTime();
+            Object result;
+            try {
+                result = method.invoke(statement, args);
+            } catch (InvocationTargetException e) {
+                metrics.errors.increment();
+                throw e.getCause();
+            } finally {
+                long nanos = System.nanoTime() - start;
+                metrics.execute.record(nanos);
+                ServerTiming.add(ServerTiming.Phase.SQL, nanos);
+                if (slowQueryLog != null && slowQueryLog.isSlow(nanos)) {
+                    slowQueryLog.offer(executed, parameters == null ? null : trim(parameters), nanos);
+                }
+            }
+
+            if (!(result instanceof ResultSet)) return result;
+            resultSet = new ResultSetHandler((ResultSet) result, proxy, metrics);
+            return Proxy.newProxyInstance(InstrumentedDataSource.class.getClassLoader(),
+                    new Class<?>[]{ResultSet.class}, resultSet);
+        }
+
+        /* Closing a statement closes its result set without telling it */
+        private void finishResultSet() {
+            if (resultSet != null) resultSet.finish();
+            resultSet = null;
+        }
+    }
+
+    private static Object[] trim(Object[] parameters) {
+        int length = parameters.length;
+        while (length > 0 && parameters[length - 1] == null) length--;
+        return Arrays.copyOf(parameters, length);
+    }
+
+    /* Only the time spent inside next() counts, not what the caller does with each row */
+    private static class ResultSetHandler implements InvocationHandler {
+        private final ResultSet resultSet;
+        private final Object statement;
+        private final SqlMetrics metrics;
+        private long fetchNanos;
+        private long rows;
+        private boolean finished;
+
+        ResultSetHandler(ResultSet resultSet, Object statement, SqlMetrics metrics) {
+            this.resultSet = resultSet;
+            this.statement = statement;
+            this.metrics = metrics;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "next":
+                    return next();
+                case "close":
+                    finish();
+                    break;
+                case "getStatement":
+                    return statement;
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+            }
+            try {
+                return method.invoke(resultSet, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        }
+
+        private boolean next() throws SQLException {
+            long start = System.nanoTime();
+            boolean more = resultSet.next();
+            long nanos = System.nanoTime() - start;
+            fetchNanos += nanos;
+            ServerTiming.add(ServerTiming.Phase.SQL, nanos);
+            if (more) {
+                rows++;
+            } else {
+                finish();
+            }
+            return more;
+        }
+
+        void finish() {
+            if (finished) return;
+            finished = true;
+            metrics.fetch.record(fetchNanos);
+            metrics.rows.add(rows);
+        }
+    }
+
+    public void writeMetrics(PrometheusWriter writer) throws IOException {
+        writer.header("lms_sql_acquire_duration_seconds", "summary", "Time taken to get a connection");
+        writer.summary("lms_sql_acquire_duration_seconds", acquireTime);
+        writer.header("lms_sql_acquire_failures_total", "counter", "Connections that could not be had");
+        writer.sample("lms_sql_acquire_failures_total", acquireFailures.sum());
+
+        Map<String, SqlMetrics> statements = new TreeMap<>(byStatement);
+        if (otherStatements.execute.getCount() > 0) statements.put(otherStatements.sql, otherStatements);
+
+        writer.header("lms_sql_execute_duration_seconds", "summary", "Time taken to execute a statement");
+        for (SqlMetrics metrics : statements.values()) {
+            writer.summary("lms_sql_execute_duration_seconds", metrics.execute, "sql", metrics.sql);
+        }
+        writer.header("lms_sql_fetch_duration_seconds", "summary", "Time spent fetching the rows of a result set");
+        for (SqlMetrics metrics : statements.values()) {
+            if (metrics.fetch.getCount() == 0) continue;
+            writer.summary("lms_sql_fetch_duration_seconds", metrics.fetch, "sql", metrics.sql);
+        }
+        writer.header("lms_sql_rows_total", "counter", "Rows read from result sets");
+        for (SqlMetrics metrics : statements.values()) {
+            if (metrics.fetch.getCount() == 0) continue;
+            writer.sample("lms_sql_rows_total", metrics.rows.sum(), "sql", metrics.sql);
+        }
+        writer.header("lms_sql_errors_total", "counter", "Statements that failed");
+        for (SqlMetrics metrics : statements.values()) {
+            long errors = metrics.errors.sum();
+            if (errors > 0) writer.sample("lms_sql_errors_total", errors, "sql", metrics.sql);
+        }
+
+        if (slowQueryLog == null) return;
+        writer.header("lms_sql_slow_queries_total", "counter", "Statements slower than the slow query threshold");
+        writer.sample("lms_sql_slow_queries_total", slowQueryLog.getSlowQueries());
+        writer.header("lms_sql_slow_query_log_dropped_total", "counter", "Slow queries not logged because the log was full");
+        writer.sample("lms_sql_slow_query_log_dropped_total", slowQueryLog.getDropped());
+    }
+
+    @Override
+    public PrintWriter getLogWriter() throws SQLException {
+        return dataSource.getLogWriter();
+    }
+
+    @Override
+    public void setLogWriter(PrintWriter out) throws SQLException {
+        dataSource.setLogWriter(out);
+    }
+
+    @Override
+    public void setLoginTimeout(int seconds) throws SQLException {
+        dataSource.setLoginTimeout(seconds);
+    }
+
+    @Override
+    public int getLoginTimeout() throws SQLException {
+        return dataSource.getLoginTimeout();
+    }
+
+    @Override
+    public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+        return dataSource.getParentLogger();
+    }
+
+    @Override
+    public <T> T unwrap(Class<T> iface) throws SQLException {
+        return iface.isInstance(this) ? iface.cast(this) : dataSource.unwrap(iface);
+    }
+
+    @Override
+    public boolean isWrapperFor(Class<?> iface) throws SQLException {
+        return iface.isInstance(this) || dataSource.isWrapperFor(iface);
+    }
+}
@@ -0,0 +1,84 @@
+package lk.ijse.dep9.db;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Statements that took longer than the threshold, with their bind parameters. Queries only enqueue their entry;
+ * formatting and logging happen in {@link #drain()}, which the background scheduler calls. When the queue is full
+ * entries are dropped and counted instead of slowing the queries down.
+ */
+public class SlowQueryLog {
+
+    private static final Logger logger = Logger.getLogger(SlowQueryLog.class.getName());
+    private static final int MAX_VALUE_LENGTH = 100;
+
+    private final long thresholdNanos;
+    private final ArrayBlockingQueue<Entry> entries;
+    private final LongAdder slowQueries = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+
+    private static class Entry {
+        private final String sql;
+        private final Object[] parameters;
+        private final long nanos;
+
+        Entry(String sql, Object[] parameters, long nanos) {
+            this.sql = sql;
+            this.parameters = parameters;
+            this.nanos = nanos;
+        }
+    }
+
+    public SlowQueryLog(long threshold, TimeUnit unit, int capacity) {
+        this.thresholdNanos = unit.toNanos(threshold);
+        this.entries = new ArrayBlockingQueue<>(capacity);
+    }
+
+    boolean isSlow(long nanos) {
+        return nanos >= thresholdNanos;
+    }
+
+    /* The parameters must be a copy, the statement may be reused before the entry is logged */
+    void offer(String sql, Object[] parameters, long nanos) {
+        slowQueries.increment();
+        if (!entries.offer(new Entry(sql, parameters, nanos))) dropped.increment();
+    }
+
+    public void drain() {
+        Entry entry;
+        while ((entry = entries.poll()) != null) {
+            if (!logger.isLoggable(Level.WARNING)) continue;
+            StringBuilder message = new StringBuilder("Slow query (")
+                    .append(TimeUnit.NANOSECONDS.toMillis(entry.nanos)).append("ms): ").append(entry.sql);
+            if (entry.parameters != null && entry.parameters.length > 0) {
+                message.append(" [");
+                for (int i = 0; i < entry.parameters.length; i++) {
+                    if (i > 0) message.append(", ");
+                    message.append(format(entry.parameters[i]));
+                }
+                message.append(']');
+            }
+            logger.warning(message.toString());
+        }
+    }
+
+    private static String format(Object value) {
+        if (value == null) return "null";
+        if (value instanceof byte[]) return "<" + ((byte[]) value).length + " bytes>";
+        String text = value.toString();
+        if (text.length() > MAX_VALUE_LENGTH) text = text.substring(0, MAX_VALUE_LENGTH) + "...";
+        return value instanceof CharSequence ? "'" + text + "'" : text;
+    }
+
+    public long getSlowQueries() {
+        return slowQueries.sum();
+    }
+
+    public long getDropped() {
+        return dropped.sum();
+    }
+}
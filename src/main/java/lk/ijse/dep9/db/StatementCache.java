@@ -0,0 +1,66 @@
+package lk.ijse.dep9.db;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * LRU cache of prepared statements belonging to a single physical connection.
+ * A statement is taken out of the cache while it is in use and put back when the borrower is done with it,
+ * so two users of the same SQL text can never share one statement.
+ */
+class StatementCache {
+
+    private final int capacity;
+    private final LinkedHashMap<String, PreparedStatement> statements = new LinkedHashMap<>(16, 0.75f, true);
+    private final LongAdder hits;
+    private final LongAdder misses;
+    private final LongAdder evictions;
+
+    StatementCache(int capacity, LongAdder hits, LongAdder misses, LongAdder evictions) {
+        this.capacity = capacity;
+        this.hits = hits;
+        this.misses = misses;
+        this.evictions = evictions;
+    }
+
+    synchronized PreparedStatement take(String key) {
+        PreparedStatement stm = statements.remove(key);
+        if (stm == null) {
+            misses.increment();
+        } else {
+            hits.increment();
+        }
+        return stm;
+    }
+
+    synchronized void put(String key, PreparedStatement stm) {
+        if (capacity <= 0 || statements.containsKey(key)) {
+            close(stm);
+            return;
+        }
+        statements.put(key, stm);
+
+        Iterator<Map.Entry<String, PreparedStatement>> iterator = statements.entrySet().iterator();
+        while (statements.size() > capacity && iterator.hasNext()) {
+            close(iterator.next().getValue());
+            iterator.remove();
+            evictions.increment();
+        }
+    }
+
+    synchronized void closeAll() {
+        statements.values().forEach(StatementCache::close);
+        statements.clear();
+    }
+
+    private static void close(PreparedStatement stm) {
+        try {
+            stm.close();
+        } catch (SQLException ignored) {
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package lk.ijse.dep9.index;
+
+import lk.ijse.dep9.dto.BookDTO;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * In-process search index over the isbn, title and author of every book.
+ * Matching follows the {@code LIKE '%q%'} semantics of the SQL search, results are ranked by relevance.
+ */
+public class BookIndex {
+
+    private static final double[] FIELD_WEIGHTS = {3, 2, 1.5};
+
+    private final NGramIndex index = new NGramIndex(3);
+    private final ConcurrentHashMap<String, BookDTO> books = new ConcurrentHashMap<>();
+    private volatile boolean ready;
+
+    public boolean isReady() {
+        return ready;
+    }
+
+    public void load(DataSource pool) {
+        try (Connection connection = pool.getConnection()) {
+            Statement stm = connection.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+            stm.setFetchSize(Integer.MIN_VALUE);
+            ResultSet rst = stm.executeQuery("SELECT * FROM book");
+            while (rst.next()) {
+                put(new BookDTO(rst.getString("isbn"), rst.getString("title"),
+                        rst.getString("author"), rst.getInt("copies")));
+            }
+            ready = true;
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public void put(BookDTO book) {
+        BookDTO copy = new BookDTO(book.getIsbn(), book.getTitle(), book.getAuthor(), book.getCopies());
+        books.put(copy.getIsbn(), copy);
+        index.put(copy.getIsbn(), copy.getIsbn(), copy.getTitle(), copy.getAuthor());
+    }
+
+    public int size() {
+        return books.size();
+    }
+
+    public List<BookDTO> search(String query) {
+        String q = NGramIndex.normalize(query);
+        List<ScoredBook> matches = new ArrayList<>();
+        for (String isbn : index.search(q)) {
+            BookDTO book = books.get(isbn);
+            if (book != null) matches.add(new ScoredBook(book, score(book, q)));
+        }
+        matches.sort((a, b) -> a.score != b.score ? Double.compare(b.score, a.score) :
+                a.book.getIsbn().compareTo(b.book.getIsbn()));
+
+        List<BookDTO> result = new ArrayList<>(matches.size());
+        for (ScoredBook match : matches) {
+            result.add(match.book);
+        }
+        return result;
+    }
+
+    /* Whole field > field prefix > whole word > word prefix > anywhere */
+    private static double score(BookDTO book, String q) {
+        if (q.isEmpty()) return 0;
+        String[] fields = {book.getIsbn(), book.getTitle(), book.getAuthor()};
+        double score = 0;
+        for (int i = 0; i < fields.length; i++) {
+            String text = NGramIndex.normalize(fields[i]);
+            int position = text.indexOf(q);
+            if (position < 0) continue;
+
+            double fieldScore;
+            if (text.equals(q)) {
+                fieldScore = 10;
+            } else if (position == 0) {
+                fieldScore = 5;
+            } else {
+                fieldScore = 1;
+                for (; position >= 0; position = text.indexOf(q, position + 1)) {
+                    boolean wordStart = !Character.isLetterOrDigit(text.charAt(position - 1));
+                    if (!wordStart) continue;
+                    int end = position + q.length();
+                    boolean wordEnd = end == text.length() || !Character.isLetterOrDigit(text.charAt(end));
+                    fieldScore = Math.max(fieldScore, wordEnd ? 4 : 2);
+                }
+            }
+            score += fieldScore * FIELD_WEIGHTS[i];
+        }
+        return score;
+    }
+
+    private static class ScoredBook {
+        private final BookDTO book;
+        private final double score;
+
+        ScoredBook(BookDTO book, double score) {
+            this.book = book;
+            this.score = score;
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package lk.ijse.dep9.index;
+
+import lk.ijse.dep9.dto.MemberDTO;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Trigram index over the id, name, address and contact of every member.
+ * It only answers which member ids match a search; the rows themselves are fetched from the database.
+ */
+public class MemberIndex {
+
+    private final NGramIndex index = new NGramIndex(3);
+    private volatile boolean ready;
+
+    public boolean isReady() {
+        return ready;
+    }
+
+    public void load(DataSource pool) {
+        try (Connection connection = pool.getConnection()) {
+            Statement stm = connection.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+            stm.setFetchSize(Integer.MIN_VALUE);
+            ResultSet rst = stm.executeQuery("SELECT * FROM member");
+            while (rst.next()) {
+                index.put(key(rst.getString("id")), rst.getString("id"), rst.getString("name"),
+                        rst.getString("address"), rst.getString("contact"));
+            }
+            ready = true;
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public void put(MemberDTO member) {
+        index.put(key(member.getId()), member.getId(), member.getName(), member.getAddress(), member.getContact());
+    }
+
+    public void remove(String memberId) {
+        index.remove(key(memberId));
+    }
+
+    /* Ids are compared case-insensitively by the database, so the index does the same */
+    private static String key(String memberId) {
+        return NGramIndex.normalize(memberId);
+    }
+
+    /* Matching (lower case) member ids in ascending order, the order of the primary key */
+    public List<String> search(String query) {
+        List<String> ids = index.search(query);
+        Collections.sort(ids);
+        return ids;
+    }
+}
@@ -0,0 +1,198 @@
+package lk.ijse.dep9.index;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Inverted index of all 1..n character grams of a document's fields, answering case-insensitive
+ * substring queries (the same rows {@code LIKE '%query%'} would match).
+ * Documents get increasing integer ids, so every posting list is a sorted int array.
+ */
+public class NGramIndex {
+
+    private final int gramLength;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Map<String, Integer> ids = new HashMap<>();
+    private final List<String> keys = new ArrayList<>();
+    private final List<String[]> texts = new ArrayList<>();
+    private final Map<String, IntList> postings = new HashMap<>();
+    private int removed;
+
+    public NGramIndex(int gramLength) {
+        this.gramLength = gramLength;
+    }
+
+    public static String normalize(String text) {
+        return text == null ? "" : text.toLowerCase(Locale.ROOT);
+    }
+
+    public void put(String key, String... fields) {
+        lock.writeLock().lock();
+        try {
+            removeInternal(key);
+            int id = keys.size();
+            String[] normalized = new String[fields.length];
+            Set<String> grams = new HashSet<>();
+            for (int i = 0; i < fields.length; i++) {
+                normalized[i] = normalize(fields[i]);
+                collectGrams(normalized[i], grams);
+            }
+            keys.add(key);
+            texts.add(normalized);
+            ids.put(key, id);
+            for (String gram : grams) {
+                postings.computeIfAbsent(gram, g -> new IntList()).add(id);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void remove(String key) {
+        lock.writeLock().lock();
+        try {
+            removeInternal(key);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void clear() {
+        lock.writeLock().lock();
+        try {
+            ids.clear();
+            keys.clear();
+            texts.clear();
+            postings.clear();
+            removed = 0;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return ids.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /* Keys of all documents with at least one field containing the query, in insertion order */
+    public List<String> search(String query) {
+        String q = normalize(query);
+        lock.readLock().lock();
+        try {
+            List<String> result = new ArrayList<>();
+            if (q.isEmpty()) {
+                for (String key : keys) {
+                    if (key != null) result.add(key);
+                }
+                return result;
+            }
+            if (q.length() <= gramLength) {
+                IntList list = postings.get(q);
+                if (list == null) return result;
+                for (int i = 0; i < list.size; i++) {
+                    String key = keys.get(list.values[i]);
+                    if (key != null) result.add(key);
+                }
+                return result;
+            }
+
+            List<IntList> lists = new ArrayList<>();
+            for (int i = 0; i + gramLength <= q.length(); i++) {
+                IntList list = postings.get(q.substring(i, i + gramLength));
+                if (list == null) return result;
+                lists.add(list);
+            }
+            lists.sort((a, b) -> Integer.compare(a.size, b.size));
+            IntList smallest = lists.get(0);
+            candidates:
+            for (int i = 0; i < smallest.size; i++) {
+                int id = smallest.values[i];
+                if (keys.get(id) == null) continue;
+                for (int j = 1; j < lists.size(); j++) {
+                    if (!lists.get(j).contains(id)) continue candidates;
+                }
+                /* All grams are present, but not necessarily next to each other */
+                for (String text : texts.get(id)) {
+                    if (text.contains(q)) {
+                        result.add(keys.get(id));
+                        break;
+                    }
+                }
+            }
+            return result;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private void collectGrams(String text, Set<String> grams) {
+        for (int length = 1; length <= gramLength; length++) {
+            for (int i = 0; i + length <= text.length(); i++) {
+                grams.add(text.substring(i, i + length));
+            }
+        }
+    }
+
+    private void removeInternal(String key) {
+        Integer id = ids.remove(key);
+        if (id == null) return;
+        keys.set(id, null);
+        texts.set(id, null);
+        if (++removed > 1024 && removed > keys.size() / 4) compact();
+    }
+
+    /* Drops the ids of removed documents from the posting lists */
+    private void compact() {
+        List<String> liveKeys = new ArrayList<>();
+        List<String[]> liveTexts = new ArrayList<>();
+        for (int id = 0; id < keys.size(); id++) {
+            if (keys.get(id) != null) {
+                liveKeys.add(keys.get(id));
+                liveTexts.add(texts.get(id));
+            }
+        }
+        ids.clear();
+        keys.clear();
+        texts.clear();
+        postings.clear();
+        removed = 0;
+        for (int i = 0; i < liveKeys.size(); i++) {
+            Set<String> grams = new HashSet<>();
+            for (String text : liveTexts.get(i)) {
+                collectGrams(text, grams);
+            }
+            keys.add(liveKeys.get(i));
+            texts.add(liveTexts.get(i));
+            ids.put(liveKeys.get(i), i);
+            for (String gram : grams) {
+                postings.computeIfAbsent(gram, g -> new IntList()).add(i);
+            }
+        }
+    }
+
+    private static class IntList {
+        private int[] values = new int[4];
+        private int size;
+
+        void add(int value) {
+            if (size == values.length) values = Arrays.copyOf(values, size * 2);
+            values[size++] = value;
+        }
+
+        boolean contains(int value) {
+            return Arrays.binarySearch(values, 0, size, value) >= 0;
+        }
+    }
+}
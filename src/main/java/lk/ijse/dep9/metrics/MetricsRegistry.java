@@ -0,0 +1,43 @@
+package lk.ijse.dep9.metrics;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * All the metrics of the application. Request latencies are recorded per route; everything else (pools, caches,
+ * counters kept by the components themselves) is read by collectors when the metrics are scraped.
+ */
+public class MetricsRegistry {
+
+    @FunctionalInterface
+    public interface Collector {
+        void collect(PrometheusWriter writer) throws IOException;
+    }
+
+    private final Map<String, RouteMetrics> routes = new ConcurrentSkipListMap<>();
+    private final List<Collector> collectors = new CopyOnWriteArrayList<>();
+
+    /* Meant to be called once per route, when the servlet is initialized */
+    public RouteMetrics route(String route) {
+        return routes.computeIfAbsent(route, RouteMetrics::new);
+    }
+
+    public void register(Collector collector) {
+        collectors.add(collector);
+    }
+
+    public void write(PrometheusWriter writer) throws IOException {
+        /* The _count of the summary is the number of requests */
+        writer.header("lms_http_request_duration_seconds", "summary", "Time taken to handle a request");
+        for (RouteMetrics route : routes.values()) route.writeLatencies(writer);
+        writer.header("lms_http_errors_total", "counter", "Requests whose handler failed with an unexpected exception");
+        for (RouteMetrics route : routes.values()) route.writeErrors(writer);
+
+        for (Collector collector : collectors) {
+            collector.collect(writer);
+        }
+    }
+}
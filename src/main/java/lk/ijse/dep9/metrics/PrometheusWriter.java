@@ -0,0 +1,78 @@
+package lk.ijse.dep9.metrics;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Writes metrics in the Prometheus text exposition format (version 0.0.4).
+ * Labels are given as name, value pairs.
+ */
+public final class PrometheusWriter {
+
+    public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private final Writer out;
+
+    public PrometheusWriter(Writer out) {
+        this.out = out;
+    }
+
+    public void header(String name, String type, String help) throws IOException {
+        out.write("# HELP ");
+        out.write(name);
+        out.write(' ');
+        out.write(help.replace("\\", "\\\\").replace("\n", "\\n"));
+        out.write("\n# TYPE ");
+        out.write(name);
+        out.write(' ');
+        out.write(type);
+        out.write('\n');
+    }
+
+    public void sample(String name, double value, String... labels) throws IOException {
+        writeName(name, labels);
+        if (value == Math.rint(value) && !Double.isInfinite(value) && Math.abs(value) < 1e15) {
+            out.write(Long.toString((long) value));
+        } else {
+            out.write(Double.toString(value));
+        }
+        out.write('\n');
+    }
+
+    public void sample(String name, long value, String... labels) throws IOException {
+        writeName(name, labels);
+        out.write(Long.toString(value));
+        out.write('\n');
+    }
+
+    /* A summary in seconds, from a histogram of nanoseconds */
+    public void summary(String name, Histogram histogram, String... labels) throws IOException {
+        double[] quantiles = {0.5, 0.9, 0.99, 0.999};
+        long[] values = histogram.quantiles(quantiles);
+        String[] quantileLabels = new String[labels.length + 2];
+        System.arraycopy(labels, 0, quantileLabels, 0, labels.length);
+        quantileLabels[labels.length] = "quantile";
+        for (int i = 0; i < quantiles.length; i++) {
+            quantileLabels[labels.length + 1] = Double.toString(quantiles[i]);
+            sample(name, values[i] / 1e9, quantileLabels);
+        }
+        sample(name + "_sum", histogram.getSum() / 1e9, labels);
+        sample(name + "_count", histogram.getCount(), labels);
+    }
+
+    private void writeName(String name, String[] labels) throws IOException {
+        out.write(name);
+        if (labels.length > 0) {
+            out.write('{');
+            for (int i = 0; i + 1 < labels.length; i += 2) {
+                if (i > 0) out.write(',');
+                out.write(labels[i]);
+                out.write("=\"");
+                out.write(labels[i + 1].replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n"));
+                out.write('"');
+            }
+            out.write('}');
+        }
+        out.write(' ');
+    }
+}
@@ -0,0 +1,76 @@
+package lk.ijse.dep9.metrics;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Latency histograms of one route, one per method and status code. A histogram is created the first time its
+ * combination is seen; after that recording only indexes into arrays.
+ */
+public final class RouteMetrics {
+
+    private static final String[] METHODS = {"GET", "HEAD", "POST", "PUT", "PATCH", "DELETE", "OPTIONS", "OTHER"};
+    private static final int STATUSES = 600;
+
+    private final String route;
+    private final AtomicReferenceArray<Histogram> latencies = new AtomicReferenceArray<>(METHODS.length * STATUSES);
+    private final AtomicLongArray errors = new AtomicLongArray(METHODS.length);
+
+    RouteMetrics(String route) {
+        this.route = route;
+    }
+
+    public void record(String method, int status, long nanos) {
+        int index = methodIndex(method) * STATUSES + (status >= 100 && status < STATUSES ? status : 0);
+        Histogram histogram = latencies.get(index);
+        if (histogram == null) {
+            latencies.compareAndSet(index, null, new Histogram());
+            histogram = latencies.get(index);
+        }
+        histogram.record(nanos);
+    }
+
+    /* A handler that failed with an exception instead of answering with a status of its own */
+    public void error(String method) {
+        errors.incrementAndGet(methodIndex(method));
+    }
+
+    private static int methodIndex(String method) {
+        switch (method) {
+            case "GET":
+                return 0;
+            case "HEAD":
+                return 1;
+            case "POST":
+                return 2;
+            case "PUT":
+                return 3;
+            case "PATCH":
+                return 4;
+            case "DELETE":
+                return 5;
+            case "OPTIONS":
+                return 6;
+            default:
+                return 7;
+        }
+    }
+
+    void writeLatencies(PrometheusWriter writer) throws IOException {
+        for (int i = 0; i < latencies.length(); i++) {
+            Histogram histogram = latencies.get(i);
+            if (histogram == null) continue;
+            writer.summary("lms_http_request_duration_seconds", histogram, "route", route,
+                    "method", METHODS[i / STATUSES], "status", String.valueOf(i % STATUSES));
+        }
+    }
+
+    void writeErrors(PrometheusWriter writer) throws IOException {
+        for (int i = 0; i < METHODS.length; i++) {
+            long count = errors.get(i);
+            if (count == 0) continue;
+            writer.sample("lms_http_errors_total", count, "route", route, "method", METHODS[i]);
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package lk.ijse.dep9.metrics;
+
+import jakarta.json.Json;
+import jakarta.json.JsonObjectBuilder;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.logging.Logger;
+
+/**
+ * Where the time of a single request went, reported in a Server-Timing header and, for a sample of the requests,
+ * as a JSON trace record. The timing belongs to the thread handling the request, so handlers (and the
+ * InstrumentedDataSource) only call the static methods. Until the first request is timed, they cost a volatile read.
+ */
+public final class ServerTiming {
+
+    public enum Phase {
+        QUEUE("queue"), PARSE("parse"), VALIDATE("validate"), INDEX("index"), POOL("pool"), SQL("sql"),
+        SERIALIZE("serialize");
+
+        private final String metric;
+
+        Phase(String metric) {
+            this.metric = metric;
+        }
+    }
+
+    private static final Phase[] PHASES = Phase.values();
+    private static final Logger logger = Logger.getLogger(ServerTiming.class.getName());
+    private static final ThreadLocal<ServerTiming> current = new ThreadLocal<>();
+    private static volatile boolean active;
+
+    private final long started;
+    private final long[] nanos = new long[PHASES.length];
+    private final boolean sampled;
+
+    private ServerTiming(long started, boolean sampled) {
+        this.started = started;
+        this.sampled = sampled;
+    }
+
+    /* Starts timing the request of the current thread, which was accepted at received (System.nanoTime()) */
+    public static ServerTiming begin(long received, double sampleRate) {
+        active = true;
+        long now = System.nanoTime();
+        ServerTiming timing = new ServerTiming(received, sampleRate > 0 && ThreadLocalRandom.current().nextDouble() < sampleRate);
+        timing.nanos[Phase.QUEUE.ordinal()] = now - received;
+        current.set(timing);
+        return timing;
+    }
+
+    public void end() {
+        current.remove();
+    }
+
+    /* Returns 0 when the request is not being timed, pass the result to stop() */
+    public static long start() {
+        return active && current.get() != null ? System.nanoTime() : 0;
+    }
+
+    public static void stop(Phase phase, long start) {
+        if (start != 0) add(phase, System.nanoTime() - start);
+    }
+
+    public static void add(Phase phase, long nanos) {
+        if (!active) return;
+        ServerTiming timing = current.get();
+        if (timing != null) timing.nanos[phase.ordinal()] += nanos;
+    }
+
+    public boolean isSampled() {
+        return sampled;
+    }
+
+    /* Phases that took no time are left out, total is the time since the request was accepted */
+    public String header() {
+        StringBuilder header = new StringBuilder(128);
+        for (Phase phase : PHASES) {
+            long duration = nanos[phase.ordinal()];
+            if (duration == 0) continue;
+            header.append(phase.metric).append(";dur=");
+            appendMillis(header, duration);
+            header.append(", ");
+        }
+        header.append("total;dur=");
+        appendMillis(header, System.nanoTime() - started);
+        return header.toString();
+    }
+
+    private static void appendMillis(StringBuilder builder, long nanos) {
+        long micros = Math.max(0, nanos / 1000);
+        builder.append(micros / 1000).append('.');
+        long fraction = micros % 1000;
+        if (fraction < 100) builder.append('0');
+        if (fraction < 10) builder.append('0');
+        builder.append(fraction);
+    }
+
+    public void trace(String method, String path, int status) {
+        long total = System.nanoTime() - started;
+        JsonObjectBuilder record = Json.createObjectBuilder()
+                .add("method", method)
+                .add("path", path)
+                .add("status", status)
+                .add("total", total / 1e6);
+        for (Phase phase : PHASES) {
+            if (nanos[phase.ordinal()] != 0) record.add(phase.metric, nanos[phase.ordinal()] / 1e6);
+        }
+        logger.info(record.build().toString());
+    }
+}
@@ -0,0 +1,88 @@
+package lk.ijse.dep9.api.util;
+
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import lk.ijse.dep9.cache.VersionTracker;
+import org.junit.jupiter.api.Test;
+
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class HttpServlet2Test {
+
+    private final HttpServlet2 servlet = new HttpServlet2();
+    private final VersionTracker versions = new VersionTracker("book");
+
+    @Test
+    void aMatchingTagIsNotModified() {
+        Map<String, Object> sent = new HashMap<>();
+        String etag = versions.rowTag("1234");
+        assertTrue(servlet.notModified(etag, false, request(etag), response(sent)));
+        assertEquals(HttpServletResponse.SC_NOT_MODIFIED, sent.get("status"));
+        assertEquals(etag, sent.get("ETag"));
+    }
+
+    @Test
+    void aStaleTagIsAnsweredInFull() {
+        Map<String, Object> sent = new HashMap<>();
+        String etag = versions.rowTag("1234");
+        versions.bump("1234");
+        assertFalse(servlet.notModified(versions.rowTag("1234"), true, request(etag), response(sent)));
+        assertFalse(sent.containsKey("status"));
+    }
+
+    /* GET /books/{isbn} for a book that doesn't exist must go on to its 404 */
+    @Test
+    void aWildcardDoesNotMatchAMissingRow() {
+        Map<String, Object> sent = new HashMap<>();
+        assertFalse(servlet.notModified(versions.rowTag("no-such-isbn"), false, request("*"), response(sent)));
+        assertFalse(sent.containsKey("status"));
+    }
+
+    @Test
+    void aWildcardMatchesARowThatWasFound() {
+        Map<String, Object> sent = new HashMap<>();
+        assertTrue(servlet.notModified(versions.rowTag("1234"), true, request("*"), response(sent)));
+        assertEquals(HttpServletResponse.SC_NOT_MODIFIED, sent.get("status"));
+    }
+
+    @Test
+    void aWildcardMatchesTheCollection() {
+        Map<String, Object> sent = new HashMap<>();
+        assertTrue(servlet.notModified(versions.tableTag(), true, request("*"), response(sent)));
+        assertEquals(HttpServletResponse.SC_NOT_MODIFIED, sent.get("status"));
+    }
+
+    private static HttpServletRequest request(String ifNoneMatch) {
+        return (HttpServletRequest) Proxy.newProxyInstance(HttpServlet2Test.class.getClassLoader(),
+                new Class<?>[]{HttpServletRequest.class}, (proxy, method, args) -> {
+                    if (method.getName().equals("getHeader") && "If-None-Match".equalsIgnoreCase((String) args[0])) {
+                        return ifNoneMatch;
+                    }
+                    if (method.getName().equals("getHeader")) return null;
+                    throw new UnsupportedOperationException(method.getName());
+                });
+    }
+
+    /* Records the headers that were set, and the status under "status" */
+    private static HttpServletResponse response(Map<String, Object> sent) {
+        return (HttpServletResponse) Proxy.newProxyInstance(HttpServlet2Test.class.getClassLoader(),
+                new Class<?>[]{HttpServletResponse.class}, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "setHeader":
+                            sent.put((String) args[0], args[1]);
+                            return null;
+                        case "setStatus":
+                            sent.put("status", args[0]);
+                            return null;
+                        default:
+                            throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+    }
+}
@@ -0,0 +1,132 @@
+package lk.ijse.dep9.api.util;
+
+import jakarta.json.bind.Jsonb;
+import jakarta.json.bind.JsonbBuilder;
+import lk.ijse.dep9.dto.BookDTO;
+import lk.ijse.dep9.dto.IssueNoteDTO;
+import lk.ijse.dep9.dto.MemberDTO;
+import lk.ijse.dep9.dto.ResponseStatusDTO;
+import lk.ijse.dep9.dto.ReturnDTO;
+import lk.ijse.dep9.dto.ReturnItemDTO;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/* The codec promises byte for byte what Yasson produces, so it is checked against Yasson itself */
+class JsonCodecTest {
+
+    /* Escapes, control characters, non-ASCII text and a character outside the BMP */
+    private static final String AWKWARD = "He said \"hi\" \\ back/slash\ttab\nline\r\b\f\u0001\u001f " +
+            "Sinhala සිංහල Tamil தமிழ் café   📚";
+
+    private static Jsonb jsonb;
+
+    @BeforeAll
+    static void createJsonb() {
+        jsonb = JsonbBuilder.create();
+    }
+
+    @AfterAll
+    static void closeJsonb() throws Exception {
+        jsonb.close();
+    }
+
+    @Test
+    void writesBooksLikeYasson() throws IOException {
+        List<BookDTO> books = Arrays.asList(
+                new BookDTO("978-3-16-148410-0", AWKWARD, "Martin Wickramasinghe", 3),
+                new BookDTO("1234-5678", null, null, null),
+                new BookDTO(null, "", "Ü", Integer.MAX_VALUE),
+                null);
+        assertEquals(jsonb.toJson(books.get(0)), write(out -> JsonCodec.writeBook(books.get(0), out)));
+        assertEquals(jsonb.toJson(books.get(1)), write(out -> JsonCodec.writeBook(books.get(1), out)));
+        assertEquals(jsonb.toJson(books), write(out -> JsonCodec.writeBooks(books, out)));
+    }
+
+    @Test
+    void writesMembersLikeYasson() throws IOException {
+        List<MemberDTO> members = Arrays.asList(
+                new MemberDTO("0f3a1c62-7d0e-4b8e-9a4b-2f1d3c5e6a7b", AWKWARD, "12, Galle Road, Colombo", "077-1234567"),
+                new MemberDTO("0f3a1c62-7d0e-4b8e-9a4b-2f1d3c5e6a7c", null, null, null),
+                null);
+        assertEquals(jsonb.toJson(members.get(0)), write(out -> JsonCodec.writeMember(members.get(0), out)));
+        assertEquals(jsonb.toJson(members), write(out -> JsonCodec.writeMembers(members, out)));
+    }
+
+    @Test
+    void writesIssueNotesLikeYasson() throws IOException {
+        IssueNoteDTO issueNote = new IssueNoteDTO(42, LocalDate.of(2022, 12, 31), AWKWARD,
+                new ArrayList<>(Arrays.asList("978-3-16-148410-0", null, "1234-5678")));
+        IssueNoteDTO empty = new IssueNoteDTO(null, null, null, null);
+        assertEquals(jsonb.toJson(issueNote), write(out -> JsonCodec.writeIssueNote(issueNote, out)));
+        assertEquals(jsonb.toJson(empty), write(out -> JsonCodec.writeIssueNote(empty, out)));
+    }
+
+    @Test
+    void writesReturnsLikeYasson() throws IOException {
+        ReturnDTO returnDTO = new ReturnDTO(AWKWARD, new ArrayList<>(Arrays.asList(
+                new ReturnItemDTO(7, "978-3-16-148410-0"), new ReturnItemDTO(null, null), null)));
+        ReturnDTO empty = new ReturnDTO(null, null);
+        assertEquals(jsonb.toJson(returnDTO), write(out -> JsonCodec.writeReturn(returnDTO, out)));
+        assertEquals(jsonb.toJson(empty), write(out -> JsonCodec.writeReturn(empty, out)));
+    }
+
+    @Test
+    void writesStatusesLikeYasson() throws IOException {
+        ResponseStatusDTO status = new ResponseStatusDTO(404, AWKWARD, "/books/1234", 1671494400000L);
+        ResponseStatusDTO empty = new ResponseStatusDTO(500, null, null, null);
+        assertEquals(jsonb.toJson(status), write(out -> JsonCodec.writeStatus(status, out)));
+        assertEquals(jsonb.toJson(empty), write(out -> JsonCodec.writeStatus(empty, out)));
+    }
+
+    @Test
+    void readsWhatYassonWrites() {
+        BookDTO book = new BookDTO("978-3-16-148410-0", AWKWARD, "Martin Wickramasinghe", 3);
+        assertEquals(jsonb.toJson(book), jsonb.toJson(JsonCodec.readBook(input(jsonb.toJson(book)))));
+
+        MemberDTO member = new MemberDTO("0f3a1c62-7d0e-4b8e-9a4b-2f1d3c5e6a7b", AWKWARD, "Colombo", "077-1234567");
+        assertEquals(jsonb.toJson(member), jsonb.toJson(JsonCodec.readMember(input(jsonb.toJson(member)))));
+
+        IssueNoteDTO issueNote = new IssueNoteDTO(42, LocalDate.of(2022, 12, 31), AWKWARD,
+                new ArrayList<>(List.of("978-3-16-148410-0", "1234-5678")));
+        assertEquals(issueNote, JsonCodec.readIssueNote(input(jsonb.toJson(issueNote))));
+
+        ReturnDTO returnDTO = new ReturnDTO(AWKWARD, new ArrayList<>(List.of(new ReturnItemDTO(7, "1234-5678"))));
+        assertEquals(returnDTO, JsonCodec.readReturn(input(jsonb.toJson(returnDTO))));
+
+        ResponseStatusDTO status = new ResponseStatusDTO(404, AWKWARD, "/books/1234", 1671494400000L);
+        assertEquals(status, JsonCodec.readStatus(input(jsonb.toJson(status))));
+    }
+
+    @Test
+    void readsBooksWrittenAsUtf8() {
+        BookDTO book = JsonCodec.readBook(input("{\"title\": \"සිංහල \\u00e9 \\uD83D\\uDCDA\", \"copies\": 1}"));
+        assertEquals("සිංහල é 📚", book.getTitle());
+        assertEquals(1, book.getCopies());
+    }
+
+    private interface Writer {
+        void write(ByteArrayOutputStream out) throws IOException;
+    }
+
+    private static String write(Writer writer) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writer.write(out);
+        return out.toString(StandardCharsets.UTF_8);
+    }
+
+    private static ByteArrayInputStream input(String json) {
+        return new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,46 @@
+package lk.ijse.dep9.cache;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class VersionTrackerTest {
+
+    @Test
+    void aWriteChangesTheRowAndTheTableTags() {
+        VersionTracker versions = new VersionTracker("book");
+        String table = versions.tableTag();
+        String row = versions.rowTag("1234");
+        String other = versions.rowTag("5678");
+        versions.bump("1234");
+        assertNotEquals(table, versions.tableTag());
+        assertNotEquals(row, versions.rowTag("1234"));
+        assertEquals(other, versions.rowTag("5678"));
+    }
+
+    @Test
+    void matchesWeaklyAndIgnoresTheCompressionSuffix() {
+        VersionTracker versions = new VersionTracker("book");
+        String tag = versions.rowTag("1234");
+        String bare = tag.substring(0, tag.length() - 1);
+        assertTrue(VersionTracker.matches(tag, tag));
+        assertTrue(VersionTracker.matches("\"other\", W/" + tag, tag));
+        assertTrue(VersionTracker.matches(bare + "-gzip\"", tag));
+        assertTrue(VersionTracker.matches(bare + "-deflate\"", tag));
+        assertFalse(VersionTracker.matches(null, tag));
+        assertFalse(VersionTracker.matches("\"other\"", tag));
+    }
+
+    /* Every key has a tag, even one that was never written, so a wildcard must not be taken for a match */
+    @Test
+    void aWildcardIsNotATagMatch() {
+        VersionTracker versions = new VersionTracker("book");
+        assertFalse(VersionTracker.matches("*", versions.rowTag("never-seen")));
+        assertTrue(VersionTracker.isWildcard(" * "));
+        assertFalse(VersionTracker.isWildcard(versions.rowTag("never-seen")));
+        assertFalse(VersionTracker.isWildcard(null));
+    }
+}
@@ -0,0 +1,96 @@
+package lk.ijse.dep9.metrics;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class HistogramTest {
+
+    private static final long MAX_VALUE = (1L << 40) - 1;
+
+    @Test
+    void valuesBelowSixteenGetABucketEach() {
+        for (long value = 0; value < 16; value++) {
+            assertEquals(value, Histogram.index(value));
+            assertEquals(value, Histogram.highestValue((int) value));
+        }
+        assertEquals(7, Histogram.index(7));
+        assertEquals(8, Histogram.index(8));
+        assertEquals(15, Histogram.index(15));
+    }
+
+    @Test
+    void subBucketsWidenWithEachPowerOfTwo() {
+        assertEquals(16, Histogram.index(16));
+        assertEquals(16, Histogram.index(17));
+        assertEquals(17, Histogram.index(18));
+        assertEquals(17, Histogram.highestValue(16));
+        assertEquals(31, Histogram.highestValue(Histogram.index(31)));
+        assertEquals(Histogram.index(31) + 1, Histogram.index(32));
+    }
+
+    @Test
+    void theLastBucketEndsAtTheLargestValue() {
+        assertEquals(303, Histogram.index(MAX_VALUE));
+        assertEquals(MAX_VALUE, Histogram.highestValue(303));
+        assertEquals(302, Histogram.index(MAX_VALUE - (1L << 36)));
+    }
+
+    /* Every value lands in the bucket whose range holds it, and the bucket is at most 12.5% wider than the value */
+    @Test
+    void everyBucketHoldsItsValues() {
+        for (long value = 1; value <= MAX_VALUE; value = value * 3 / 2 + 1) {
+            for (long v : new long[]{value - 1, value, value + 1}) {
+                int index = Histogram.index(v);
+                long highest = Histogram.highestValue(index);
+                assertTrue(highest >= v, v + " is above its bucket");
+                assertTrue(index == 0 || Histogram.highestValue(index - 1) < v, v + " belongs to a lower bucket");
+                assertTrue(highest - v <= v / 8, v + " is off by more than 12.5%");
+            }
+        }
+    }
+
+    @Test
+    void outOfRangeValuesAreClamped() {
+        Histogram histogram = new Histogram();
+        histogram.record(-5);
+        histogram.record(Long.MAX_VALUE);
+        assertEquals(2, histogram.getCount());
+        assertEquals(Long.MAX_VALUE, histogram.getSum());
+        assertArrayEquals(new long[]{0, MAX_VALUE}, histogram.quantiles(0, 1));
+    }
+
+    @Test
+    void quantilesOfExactBuckets() {
+        Histogram histogram = new Histogram();
+        for (long value = 0; value < 16; value++) {
+            histogram.record(value);
+        }
+        assertEquals(16, histogram.getCount());
+        assertEquals(120, histogram.getSum());
+        assertArrayEquals(new long[]{0, 3, 7, 14, 15}, histogram.quantiles(0, 0.25, 0.5, 0.9, 1));
+    }
+
+    @Test
+    void quantilesOfAUniformDistribution() {
+        Histogram histogram = new Histogram();
+        for (long value = 1; value <= 1000; value++) {
+            histogram.record(value);
+        }
+        double[] quantiles = {0.5, 0.9, 0.99, 0.999, 1};
+        long[] values = histogram.quantiles(quantiles);
+        for (int i = 0; i < quantiles.length; i++) {
+            long exact = (long) Math.ceil(quantiles[i] * 1000);
+            assertEquals(Histogram.highestValue(Histogram.index(exact)), values[i]);
+            assertTrue(values[i] >= exact && values[i] - exact <= exact / 8);
+        }
+        assertEquals(500_500, histogram.getSum());
+    }
+
+    @Test
+    void anEmptyHistogramReportsZeros() {
+        assertArrayEquals(new long[]{0, 0}, new Histogram().quantiles(0.5, 0.99));
+    }
+}